@@ -15,17 +15,41 @@
  * limitations under the License.
  */
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManagerBase;
 import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.session.StoreBase;
 import org.apache.catalina.util.CustomObjectInputStream;
@@ -34,26 +58,152 @@ import org.apache.catalina.util.CustomObjectInputStream;
 public class CatalinaRedisSessionStore extends StoreBase {
 
 	private RedisCache redisCache;
+	//compresses sessions on their way to Redis, null to store them as they are
+	private RedisPayloadCompressor compressor;
 	public static final String KEY_PREFIX_SESSION = "CATALINASESSION-";
+	public static final String KEY_SESSION_INDEX = "CATALINASESSIONINDEX";
+	//session ids scored by the time they expire at, so the expiry sweep only loads the expired sessions
+	public static final String KEY_SESSION_EXPIRY = "CATALINASESSIONEXPIRY";
+	private static final String KEY_EXPIRY_LEASE = "CATALINASESSIONEXPIRYLEASE";
+	//one node sweeps per lease, should match how often Tomcat processes expires
+	private int expiryLeaseSeconds = 60;
+	private final String leaseOwner = UUID.randomUUID().toString();
+	//sessions are kept this much longer than their timeout, so Tomcat can still expire them itself
+	private static final int EXPIRE_GRACE_SECONDS = 60;
+	//in delta mode a session is a hash of its metadata and a field per attribute
+	private static final String FIELD_METADATA = "metadata";
+	private static final String FIELD_ATTRIBUTE_PREFIX = "attribute-";
+	private boolean deltaMode = false;
+	//digests of the fields as last written or loaded, by session id, so unchanged attributes aren't written again.
+	//Kept for the most recently saved or loaded sessions, a session without digests is written whole.
+	private int maxDigestSessions = 10000;
+	private final Map<String, Map<String, byte[]>> fieldDigests = Collections.synchronizedMap(
+		new LinkedHashMap<String, Map<String, byte[]>>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest){
+				return size() > maxDigestSessions;
+			}
+		});
+	//sessions saved or loaded at once are handled in batches of this many, the next batch is serialized while one is written
+	private static final int BULK_BATCH_SIZE = 100;
+	//threads that serialize sessions saved or loaded at once
+	private int bulkThreads = Runtime.getRuntime().availableProcessors();
+	//sessions read ahead by preload, handed out by load
+	private final Map<String, Session> preloaded = new ConcurrentHashMap<String, Session>();
 	
-	public CatalinaRedisSessionStore(){
-		redisCache = new RedisCache();
-		redisCache.init();
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		//the pools are shared with the other stores of the class loader
+		redisCache = RedisCacheRegistry.acquire();
+		super.startInternal();
+	}
+	
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		RedisCacheRegistry.release(redisCache);
+	}
+	
+	public RedisPayloadCompressor getCompressor(){
+		return compressor;
+	}
+	
+	public void setCompressor(RedisPayloadCompressor compressor){
+		this.compressor = compressor;
+	}
+	
+	/**
+	 * Compresses sessions of at least this many bytes. Meant for the Store element in context.xml,
+	 * a negative value turns compression off.
+	 * @param threshold
+	 */
+	public void setCompressionThreshold(int threshold){
+		this.compressor = threshold < 0 ? null : new RedisPayloadCompressor(threshold, Deflater.BEST_SPEED);
+	}
+	
+	public boolean isDeltaMode(){
+		return deltaMode;
+	}
+	
+	/**
+	 * Stores a session as a hash with a field per attribute, and only writes the attributes that changed
+	 * since it was last saved or loaded, instead of the whole session. Meant for the Store element in
+	 * context.xml. Sessions saved in one mode can't be loaded in the other.
+	 * @param deltaMode
+	 */
+	public void setDeltaMode(boolean deltaMode){
+		this.deltaMode = deltaMode;
+	}
+	
+	public int getMaxDigestSessions(){
+		return maxDigestSessions;
+	}
+	
+	/**
+	 * How many sessions delta mode keeps the attribute digests of, the ones saved or loaded most recently.
+	 * A session whose digests were dropped is written whole on its next save.
+	 * @param maxDigestSessions
+	 */
+	public void setMaxDigestSessions(int maxDigestSessions){
+		this.maxDigestSessions = maxDigestSessions;
+	}
+	
+	/**
+	 * Drops the attribute digests of a session that was swapped out of this node's memory. Another node may
+	 * change it before it is loaded here again, so digests from before would hide those changes.
+	 * {@link RedisPersistentManager} calls this, a session loaded again gets new digests.
+	 * @param id
+	 */
+	public void swappedOut(String id){
+		fieldDigests.remove(id);
+	}
+	
+	public int getExpiryLeaseSeconds(){
+		return expiryLeaseSeconds;
+	}
+	
+	/**
+	 * How long a node that swept the expired sessions keeps the others from sweeping. Meant for the Store
+	 * element in context.xml, set it to how often Tomcat processes expires: processExpiresFrequency times
+	 * the backgroundProcessorDelay of the Engine, 60 seconds by default.
+	 * @param expiryLeaseSeconds
+	 */
+	public void setExpiryLeaseSeconds(int expiryLeaseSeconds){
+		this.expiryLeaseSeconds = expiryLeaseSeconds;
+	}
+	
+	public int getBulkThreads(){
+		return bulkThreads;
+	}
+	
+	/**
+	 * @param bulkThreads how many threads serialize the sessions of {@link #saveAll(Collection)} and
+	 * {@link #preload(String[])}, the number of processors by default
+	 */
+	public void setBulkThreads(int bulkThreads){
+		this.bulkThreads = bulkThreads;
 	}
 	
 	@Override
 	public void clear() throws IOException {
-		redisCache.clearCachePrefix(KEY_PREFIX_SESSION);
+		redisCache.clearIndexed(KEY_SESSION_INDEX, KEY_PREFIX_SESSION, KEY_SESSION_EXPIRY);
+		fieldDigests.clear();
 	}
 
 	@Override
 	public int getSize() throws IOException {
-		return redisCache.getCachedKeys(KEY_PREFIX_SESSION).size();
+		//make sure the index gets built before counting it
+		if(redisCache.getIndexSize(KEY_SESSION_INDEX) == 0){
+			return redisCache.getIndexedKeys(KEY_SESSION_INDEX, KEY_PREFIX_SESSION).size();
+		}
+		return (int) redisCache.getIndexSize(KEY_SESSION_INDEX);
 	}
 
 	@Override
 	public String[] keys() throws IOException {
-		Set<String> keySet = redisCache.getCachedKeys(KEY_PREFIX_SESSION);
+		Set<String> keySet = redisCache.getIndexedKeys(KEY_SESSION_INDEX, KEY_PREFIX_SESSION);
 		String[] keys = new String[keySet.size()];
 		int i = 0;
 		for(String key : keySet){
@@ -65,53 +215,475 @@ public class CatalinaRedisSessionStore extends StoreBase {
 
 	@Override
 	public Session load(String id) throws ClassNotFoundException, IOException {
-		Object o = redisCache.getCacheObject(KEY_PREFIX_SESSION + id);
-		if(o != null && o instanceof byte[]){
-			ByteArrayInputStream bis = new ByteArrayInputStream((byte[]) o);
+		Session session = preloaded.remove(id);
+		if(session != null){
+			return session;
+		}
+		return read(id);
+	}
+	
+	/**
+	 * Reads the session from Redis, leaving the preloaded sessions alone
+	 */
+	private Session read(String id) throws ClassNotFoundException, IOException {
+		if(deltaMode){
+			return loadDelta(id);
+		}
+		return readSession(redisCache.getBytes(KEY_PREFIX_SESSION + id));
+	}
+	
+	private Session readSession(byte[] data) throws ClassNotFoundException, IOException {
+		data = decompress(data);
+		if(data != null && data.length > 0){
 			StandardSession session = (StandardSession) manager.createEmptySession();
-			Container container = manager.getContainer();
-			ClassLoader classLoader = null;
-			ObjectInputStream ois = null;
-			Loader loader = null;
-			if (container != null) {
-				loader = container.getLoader();
-			}
-			if (loader != null) {
-				classLoader = loader.getClassLoader();
-			}
-			if (classLoader != null) {
-				Thread.currentThread().setContextClassLoader(classLoader);
-				ois = new CustomObjectInputStream(bis,
-						classLoader);
-			} else {
-				ois = new ObjectInputStream(bis);
-			}
-			session.readObjectData(ois);
+			session.readObjectData(getObjectInputStream(data));
 			session.setManager(manager);
 			return session;
 		}else{
 			return null;
 		}
 	}
+	
+	/**
+	 * Reads many sessions ahead of {@link #load(String)}, such as all stored sessions when Tomcat starts.
+	 * They are read with MGET in batches and deserialized in parallel while the next batch is read,
+	 * in delta mode each session is read on its own, in parallel. Until {@link #clearPreloaded()},
+	 * load returns a preloaded session once instead of reading it.
+	 * @param ids
+	 * @return the number of sessions read
+	 */
+	public int preload(String[] ids){
+		ExecutorService executor = newBulkExecutor(ids.length);
+		try{
+			List<Future<Session>> sessions = new ArrayList<Future<Session>>(ids.length);
+			for(int from = 0; from < ids.length; from += BULK_BATCH_SIZE){
+				List<String> batch = Arrays.asList(ids).subList(from, Math.min(from + BULK_BATCH_SIZE, ids.length));
+				if(deltaMode){
+					for(final String id : batch){
+						sessions.add(executor.submit(new Callable<Session>(){
+							@Override
+							public Session call() throws Exception {
+								return loadDelta(id);
+							}
+						}));
+					}
+					continue;
+				}
+				List<String> keys = new ArrayList<String>(batch.size());
+				for(String id : batch){
+					keys.add(KEY_PREFIX_SESSION + id);
+				}
+				for(final byte[] data : redisCache.multiGet(keys)){
+					sessions.add(executor.submit(new Callable<Session>(){
+						@Override
+						public Session call() throws Exception {
+							return readSession(data);
+						}
+					}));
+				}
+			}
+			int count = 0;
+			for(Future<Session> future : sessions){
+				try{
+					Session session = future.get();
+					if(session != null){
+						preloaded.put(session.getIdInternal(), session);
+						count++;
+					}
+				}catch(ExecutionException e){
+					logError("Could not preload a session", e.getCause());
+				}
+			}
+			return count;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return preloaded.size();
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Drops the preloaded sessions that weren't loaded
+	 */
+	public void clearPreloaded(){
+		preloaded.clear();
+	}
+	
+	/**
+	 * Rebuilds the session from its hash, read in one HGETALL
+	 */
+	private Session loadDelta(String id) throws ClassNotFoundException, IOException {
+		Map<String, byte[]> fields = redisCache.getHashAll(KEY_PREFIX_SESSION + id);
+		byte[] metadata = fields.get(FIELD_METADATA);
+		if(metadata == null){
+			fieldDigests.remove(id);
+			return null;
+		}
+		StandardSession session = (StandardSession) manager.createEmptySession();
+		//the metadata is the start of what writeObjectData writes, without attributes
+		session.readObjectData(getObjectInputStream(decompress(metadata)));
+		Map<String, byte[]> digests = new HashMap<String, byte[]>();
+		for(Map.Entry<String, byte[]> entry : fields.entrySet()){
+			if(entry.getKey().startsWith(FIELD_ATTRIBUTE_PREFIX)){
+				byte[] data = decompress(entry.getValue());
+				Object value = getObjectInputStream(data).readObject();
+				session.setAttribute(entry.getKey().substring(FIELD_ATTRIBUTE_PREFIX.length()), value, false);
+				//digests are of the serialized attributes, before compression
+				digests.put(entry.getKey(), digest(data, 0, data.length));
+			}
+		}
+		session.setManager(manager);
+		fieldDigests.put(id, digests);
+		return session;
+	}
+	
+	/**
+	 * Decoded even without a compressor, the session may have been saved while there was one
+	 */
+	private static byte[] decompress(byte[] data) throws IOException {
+		return RedisPayloadCompressor.decode(data);
+	}
+	
+	/**
+	 * @return a stream that resolves classes with the webapp's class loader
+	 */
+	private ObjectInputStream getObjectInputStream(byte[] data) throws IOException {
+		ByteArrayInputStream bis = new ByteArrayInputStream(data);
+		Container container = manager.getContainer();
+		ClassLoader classLoader = null;
+		Loader loader = null;
+		if (container != null) {
+			loader = container.getLoader();
+		}
+		if (loader != null) {
+			classLoader = loader.getClassLoader();
+		}
+		if (classLoader != null) {
+			Thread.currentThread().setContextClassLoader(classLoader);
+			return new CustomObjectInputStream(bis,
+					classLoader);
+		} else {
+			return new ObjectInputStream(bis);
+		}
+	}
 
 	@Override
 	public void remove(String id) throws IOException {
-		redisCache.deleteCacheObject(KEY_PREFIX_SESSION + id);
+		redisCache.deleteCacheObject(KEY_PREFIX_SESSION + id, KEY_SESSION_INDEX);
+		redisCache.removeMember(KEY_SESSION_EXPIRY, id);
+		fieldDigests.remove(id);
+	}
+	
+	/**
+	 * Expires the stored sessions that are past their timeout. Unlike StoreBase, which loads every
+	 * session to check it, this only loads the sessions the expiry set says are expired, and only
+	 * on the node that takes the lease.
+	 */
+	@Override
+	public void processExpires() {
+		if(!getState().isAvailable()){
+			return;
+		}
+		if(!redisCache.acquireLease(KEY_EXPIRY_LEASE, leaseOwner, expiryLeaseSeconds * 1000L)){
+			return;
+		}
+		for(String id : redisCache.getMembersUpTo(KEY_SESSION_EXPIRY, System.currentTimeMillis())){
+			try{
+				StandardSession session = (StandardSession) read(id);
+				if(session == null){
+					//its key expired in Redis already
+					forget(id);
+					continue;
+				}
+				if(session.isValid()){
+					//its timeout changed since it was saved
+					recordExpiry(session);
+					continue;
+				}
+				if(((PersistentManagerBase) manager).isLoaded(id)){
+					//the session is in use on this node, the stored copy is an old backup
+					session.recycle();
+				}else{
+					session.expire();
+				}
+				remove(id);
+			}catch(Exception e){
+				logError("Could not expire session " + id, e);
+				try{
+					remove(id);
+				}catch(IOException e2){
+					//removed by its Redis expiry eventually
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Drops a session whose key is gone from the index and the expiry set. Unlike {@link #remove(String)}
+	 * the key isn't deleted, in case a node has saved the session again since.
+	 */
+	private void forget(String id){
+		redisCache.removeIndexed(KEY_PREFIX_SESSION + id, KEY_SESSION_INDEX);
+		redisCache.removeMember(KEY_SESSION_EXPIRY, id);
+		fieldDigests.remove(id);
+	}
+	
+	/**
+	 * Records when the session expires in the expiry set, or removes it from the set if it doesn't
+	 */
+	private void recordExpiry(StandardSession session){
+		long expiresAt = getExpiresAt(session);
+		if(expiresAt > 0){
+			redisCache.setScore(KEY_SESSION_EXPIRY, session.getIdInternal(), expiresAt);
+		}else{
+			redisCache.removeMember(KEY_SESSION_EXPIRY, session.getIdInternal());
+		}
+	}
+	
+	/**
+	 * @return the time the session expires at if it isn't used again, 0 if it doesn't expire
+	 */
+	private static long getExpiresAt(StandardSession session){
+		int timeout = session.getMaxInactiveInterval();
+		return timeout > 0 ? session.getThisAccessedTimeInternal() + timeout * 1000L : 0;
 	}
 
 	@Override
 	public void save(Session session) throws IOException {
+		if(deltaMode){
+			saveDelta((StandardSession) session);
+			return;
+		}
 		try{
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+			//the session is saved again whenever it is used, so that keeps the expiry sliding
+			redisCache.storeBytes(KEY_PREFIX_SESSION + session.getIdInternal(), writeSession((StandardSession) session),
+					KEY_SESSION_INDEX, getExpireSeconds(session), false);
+			recordExpiry((StandardSession) session);
+		}catch(Exception e){
 
-			((StandardSession) session).writeObjectData(oos);
+		}
+	}
+	
+	private byte[] writeSession(StandardSession session) throws IOException {
+		//ObjectOutputStream buffers block data itself, so it writes straight to the pooled buffer
+		RedisBufferPool.BufferOutputStream bos = RedisBufferPool.getOutputStream();
+		try{
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			session.writeObjectData(oos);
 			oos.close();
-			oos = null;
-			byte[] obs = bos.toByteArray();
-			redisCache.storeCacheObject(KEY_PREFIX_SESSION + session.getIdInternal(), obs);
+			return compress(bos);
+		}finally{
+			bos.release();
+		}
+	}
+	
+	private static int getExpireSeconds(Session session){
+		int timeout = session.getMaxInactiveInterval();
+		return timeout > 0 ? timeout + EXPIRE_GRACE_SECONDS : 0;
+	}
+	
+	/**
+	 * Saves many sessions, such as all sessions of the node when Tomcat stops. They are serialized in parallel
+	 * on up to {@link #getBulkThreads()} threads, and written in pipelined batches while the next batch
+	 * is serialized. In delta mode each session is written on its own, in parallel.
+	 * @param sessions
+	 */
+	public void saveAll(Collection<? extends Session> sessions){
+		ExecutorService executor = newBulkExecutor(sessions.size());
+		try{
+			if(deltaMode){
+				List<Future<?>> saves = new ArrayList<Future<?>>(sessions.size());
+				for(final Session session : sessions){
+					saves.add(executor.submit(new Runnable(){
+						@Override
+						public void run(){
+							saveDelta((StandardSession) session);
+						}
+					}));
+				}
+				for(Future<?> save : saves){
+					save.get();
+				}
+				return;
+			}
+			List<Session> all = new ArrayList<Session>(sessions);
+			List<Future<byte[]>> next = serializeAll(executor, all, 0);
+			for(int from = 0; from < all.size(); from += BULK_BATCH_SIZE){
+				List<Future<byte[]>> current = next;
+				next = serializeAll(executor, all, from + BULK_BATCH_SIZE);
+				writeAll(all.subList(from, Math.min(from + BULK_BATCH_SIZE, all.size())), current);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(ExecutionException e){
+			logError("Could not save the sessions", e.getCause());
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Starts serializing the batch of sessions that starts at the given position
+	 */
+	private List<Future<byte[]>> serializeAll(ExecutorService executor, List<Session> sessions, int from){
+		List<Future<byte[]>> serialized = new ArrayList<Future<byte[]>>();
+		for(int i = from; i < Math.min(from + BULK_BATCH_SIZE, sessions.size()); i++){
+			final StandardSession session = (StandardSession) sessions.get(i);
+			serialized.add(executor.submit(new Callable<byte[]>(){
+				@Override
+				public byte[] call() throws Exception {
+					return writeSession(session);
+				}
+			}));
+		}
+		return serialized;
+	}
+	
+	/**
+	 * Writes a batch of serialized sessions, with one pipeline per expiry time
+	 */
+	private void writeAll(List<Session> sessions, List<Future<byte[]>> serialized) throws InterruptedException {
+		Map<Integer, Map<String, byte[]>> byExpiry = new HashMap<Integer, Map<String, byte[]>>();
+		Map<String, Long> expiries = new HashMap<String, Long>();
+		for(int i = 0; i < sessions.size(); i++){
+			StandardSession session = (StandardSession) sessions.get(i);
+			byte[] data;
+			try{
+				data = serialized.get(i).get();
+			}catch(ExecutionException e){
+				logError("Could not save session " + session.getIdInternal(), e.getCause());
+				continue;
+			}
+			int expireSeconds = getExpireSeconds(session);
+			Map<String, byte[]> values = byExpiry.get(expireSeconds);
+			if(values == null){
+				values = new LinkedHashMap<String, byte[]>();
+				byExpiry.put(expireSeconds, values);
+			}
+			values.put(KEY_PREFIX_SESSION + session.getIdInternal(), data);
+			long expiresAt = getExpiresAt(session);
+			if(expiresAt > 0){
+				expiries.put(session.getIdInternal(), expiresAt);
+			}else{
+				redisCache.removeMember(KEY_SESSION_EXPIRY, session.getIdInternal());
+			}
+		}
+		for(Map.Entry<Integer, Map<String, byte[]>> entry : byExpiry.entrySet()){
+			redisCache.multiStore(entry.getValue(), entry.getKey(), KEY_SESSION_INDEX);
+		}
+		redisCache.setScores(KEY_SESSION_EXPIRY, expiries);
+	}
+	
+	private ExecutorService newBulkExecutor(int tasks){
+		return Executors.newFixedThreadPool(Math.max(1, Math.min(bulkThreads, tasks)), new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "CatalinaRedisSessionStore-bulk-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	private void logError(String message, Throwable t){
+		Container container = manager.getContainer();
+		if(container != null){
+			container.getLogger().error(message, t);
+		}
+	}
+	
+	/**
+	 * Writes the metadata, and the attributes that changed since the session was last saved or loaded,
+	 * in one MULTI round trip. Attributes that are gone are deleted.
+	 */
+	private void saveDelta(StandardSession session){
+		String id = session.getIdInternal();
+		try{
+			String key = KEY_PREFIX_SESSION + id;
+			Map<String, byte[]> previous = fieldDigests.get(id);
+			Map<String, byte[]> digests = new HashMap<String, byte[]>();
+			Map<String, byte[]> changed = new LinkedHashMap<String, byte[]>();
+			RedisBufferPool.BufferOutputStream bos = RedisBufferPool.getOutputStream();
+			try{
+				//the access times change on every save
+				writeMetadata(session, bos);
+				changed.put(FIELD_METADATA, compress(bos));
+				Enumeration<String> names = session.getAttributeNames();
+				while(names.hasMoreElements()){
+					String name = names.nextElement();
+					Object value = session.getAttribute(name);
+					//skipped by writeObjectData as well
+					if(value instanceof Serializable && !Globals.SUBJECT_ATTR.equals(name)){
+						String field = FIELD_ATTRIBUTE_PREFIX + name;
+						bos.reset();
+						ObjectOutputStream oos = new ObjectOutputStream(bos);
+						oos.writeObject(value);
+						oos.close();
+						byte[] digest = digest(bos.getBuffer(), 0, bos.size());
+						digests.put(field, digest);
+						//unchanged attributes are never copied out of the buffer
+						if(previous == null || !Arrays.equals(digest, previous.get(field))){
+							changed.put(field, compress(bos));
+						}
+					}
+				}
+			}finally{
+				bos.release();
+			}
+			Set<String> stored = previous != null ? previous.keySet() : redisCache.getHashFields(key);
+			List<String> deletes = new ArrayList<String>();
+			for(String field : stored){
+				if(field.startsWith(FIELD_ATTRIBUTE_PREFIX) && !digests.containsKey(field)){
+					deletes.add(field);
+				}
+			}
+			if(redisCache.writeHashBytes(key, changed, deletes, KEY_SESSION_INDEX, getExpireSeconds(session))){
+				fieldDigests.put(id, digests);
+			}else{
+				//write everything next time
+				fieldDigests.remove(id);
+			}
+			recordExpiry(session);
 		}catch(Exception e){
-
+			//write everything next time
+			fieldDigests.remove(id);
+			logError("Could not save session " + id, e);
+		}
+	}
+	
+	/**
+	 * @return the bytes written to bos, compressed if there is a compressor
+	 */
+	private byte[] compress(RedisBufferPool.BufferOutputStream bos){
+		return compressor != null ? compressor.compress(bos.getBuffer(), 0, bos.size()) : bos.toByteArray();
+	}
+	
+	/**
+	 * Writes the session's fields the way writeObjectData does, followed by an attribute count of 0,
+	 * so readObjectData reads it back. Only valid sessions are saved, the attributes couldn't be read otherwise.
+	 */
+	private static void writeMetadata(StandardSession session, OutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(Long.valueOf(session.getCreationTimeInternal()));
+		oos.writeObject(Long.valueOf(session.getLastAccessedTimeInternal()));
+		oos.writeObject(Integer.valueOf(session.getMaxInactiveInterval()));
+		oos.writeObject(Boolean.valueOf(session.isNew()));
+		oos.writeObject(Boolean.TRUE);
+		oos.writeObject(Long.valueOf(session.getThisAccessedTimeInternal()));
+		oos.writeObject(session.getIdInternal());
+		oos.writeObject(Integer.valueOf(0));
+		oos.close();
+	}
+	
+	private static byte[] digest(byte[] data, int offset, int length){
+		try{
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(data, offset, length);
+			return md5.digest();
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
 		}
 	}
 
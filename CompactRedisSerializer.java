@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A compact serializer. Strings, byte arrays and boxed primitives are written directly
+ * with a one byte type tag. Everything else goes through Java serialization, but classes
+ * that have been registered are written as a small id instead of a full class descriptor.
+ * <p>
+ * The id of a class is its position in the registration order, so every node must register
+ * the same classes in the same order. A registered class is read with the local class
+ * descriptor, so only register classes whose serialized fields are the same on all nodes.
+ */
+public class CompactRedisSerializer implements IRedisSerializer {
+	
+	public static final byte FORMAT_ID = 3;
+	
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_BYTES = 2;
+	private static final byte TYPE_INTEGER = 3;
+	private static final byte TYPE_LONG = 4;
+	private static final byte TYPE_BOOLEAN = 5;
+	private static final byte TYPE_OBJECT = 6;
+	
+	//class descriptor id written for classes that aren't registered
+	private static final int UNREGISTERED = -1;
+	
+	private final List<Class<?>> classes = new CopyOnWriteArrayList<Class<?>>();
+	private final Map<String, Integer> classIds = new ConcurrentHashMap<String, Integer>();
+	
+	/**
+	 * Registers a class so it is written as an id rather than a full class descriptor
+	 * @param clazz
+	 * @return this, for chaining
+	 */
+	public synchronized CompactRedisSerializer register(Class<? extends Serializable> clazz){
+		if(!classIds.containsKey(clazz.getName())){
+			classIds.put(clazz.getName(), classes.size());
+			classes.add(clazz);
+		}
+		return this;
+	}
+	
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public byte[] serialize(Object obj) throws IOException {
+		RedisBufferPool.BufferOutputStream buffer = RedisBufferPool.getOutputStream();
+		try{
+			buffer.write(FORMAT_ID);
+			DataOutputStream out = new DataOutputStream(buffer);
+			if(obj == null){
+				out.writeByte(TYPE_NULL);
+			}else if(obj instanceof String){
+				out.writeByte(TYPE_STRING);
+				byte[] chars = ((String) obj).getBytes("UTF-8");
+				out.writeInt(chars.length);
+				out.write(chars);
+			}else if(obj instanceof byte[]){
+				out.writeByte(TYPE_BYTES);
+				out.writeInt(((byte[]) obj).length);
+				out.write((byte[]) obj);
+			}else if(obj instanceof Integer){
+				out.writeByte(TYPE_INTEGER);
+				out.writeInt((Integer) obj);
+			}else if(obj instanceof Long){
+				out.writeByte(TYPE_LONG);
+				out.writeLong((Long) obj);
+			}else if(obj instanceof Boolean){
+				out.writeByte(TYPE_BOOLEAN);
+				out.writeBoolean((Boolean) obj);
+			}else{
+				out.writeByte(TYPE_OBJECT);
+				out.flush();
+				ObjectOutputStream oos = new CompactObjectOutputStream(buffer);
+				oos.writeObject(obj);
+				oos.close();
+			}
+			out.flush();
+			return buffer.toByteArray();
+		}finally{
+			buffer.release();
+		}
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(data, 1, data.length - 1);
+		DataInputStream in = new DataInputStream(bais);
+		byte type = in.readByte();
+		switch(type){
+			case TYPE_NULL:
+				return null;
+			case TYPE_STRING:
+				byte[] chars = new byte[in.readInt()];
+				in.readFully(chars);
+				return new String(chars, "UTF-8");
+			case TYPE_BYTES:
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				return bytes;
+			case TYPE_INTEGER:
+				return in.readInt();
+			case TYPE_LONG:
+				return in.readLong();
+			case TYPE_BOOLEAN:
+				return in.readBoolean();
+			case TYPE_OBJECT:
+				ObjectInputStream ois = new CompactObjectInputStream(bais);
+				Object o = ois.readObject();
+				ois.close();
+				return o;
+			default:
+				throw new StreamCorruptedException("Unknown type " + type);
+		}
+	}
+	
+	private final class CompactObjectOutputStream extends ObjectOutputStream {
+		
+		CompactObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+		
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			Integer id = classIds.get(desc.getName());
+			if(id != null){
+				writeInt(id);
+			}else{
+				writeInt(UNREGISTERED);
+				super.writeClassDescriptor(desc);
+			}
+		}
+	}
+	
+	private final class CompactObjectInputStream extends ObjectInputStream {
+		
+		CompactObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+		
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			int id = readInt();
+			if(id == UNREGISTERED){
+				return super.readClassDescriptor();
+			}
+			if(id < 0 || id >= classes.size()){
+				throw new StreamCorruptedException("Unknown class id " + id + ", are the same classes registered on every node?");
+			}
+			return ObjectStreamClass.lookup(classes.get(id));
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Turns the objects stored by {@link RedisCache} into bytes and back.
+ * <p>
+ * Every value starts with a one byte format header, the value of {@link #getFormatId()},
+ * so {@link RedisCache} can pick the serializer that reads a value from its first byte.
+ * That way nodes that write different formats (like during a rolling deploy) can still read
+ * each other's values, as long as the serializer of each format is registered.
+ */
+public interface IRedisSerializer {
+	
+	/**
+	 * @return the header byte that starts every value written by this serializer, unique per format
+	 */
+	byte getFormatId();
+	
+	/**
+	 * @param obj
+	 * @return the serialized bytes, starting with the format header
+	 * @throws IOException
+	 */
+	byte[] serialize(Object obj) throws IOException;
+	
+	/**
+	 * @param data the serialized bytes, including the format header
+	 * @return the object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	Object deserialize(byte[] data) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+
+/**
+ * Plain Java serialization. The stream magic that starts every Java serialization stream
+ * doubles as the format header, so values written before format headers existed are read as well.
+ */
+public class JavaRedisSerializer implements IRedisSerializer {
+	
+	public static final byte FORMAT_ID = (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8);
+	
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public byte[] serialize(Object obj) throws IOException {
+		RedisBufferPool.BufferOutputStream out = RedisBufferPool.getOutputStream();
+		try{
+			ObjectOutputStream oos = new ObjectOutputStream( out );
+			oos.writeObject( obj );
+			oos.close();
+			return out.toByteArray();
+		}finally{
+			out.release();
+		}
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream( 
+				new ByteArrayInputStream(  data ) );
+		Object o  = ois.readObject();
+		ois.close();
+		return o;
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reusable buffers to serialize and compress sessions and pages in, so a save allocates
+ * little more than the byte[] that is handed to Redis.
+ * <p>
+ * Buffers come in size classes of 4KB, 16KB, 64KB, 256KB and 1MB. The pool is striped by
+ * thread id, and each stripe keeps at most one buffer of each class, so it holds about 1.3MB
+ * per stripe at most however many request threads there are. Bigger buffers, and buffers whose
+ * slot is already taken when they come back, are left to the garbage collector.
+ */
+public final class RedisBufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 12;
+	//each class is 4 times the size of the one before
+	private static final int CLASS_SHIFT = 2;
+	private static final int SIZE_CLASSES = 5;
+
+	public static final int MAX_POOLED_SIZE = 1 << (MIN_SIZE_SHIFT + (SIZE_CLASSES - 1) * CLASS_SHIFT);
+
+	//as many stripes as CPUs, rounded up to a power of two
+	private static final int STRIPE_MASK = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) - 1;
+	private static final AtomicReferenceArray<byte[]> buffers = new AtomicReferenceArray<byte[]>((STRIPE_MASK + 1) * SIZE_CLASSES);
+
+	private RedisBufferPool(){
+	}
+
+	/**
+	 * @param minSize
+	 * @return a buffer of at least minSize bytes, to give back with {@link #release(byte[])}
+	 */
+	public static byte[] acquire(int minSize){
+		int sizeClass = getSizeClass(minSize);
+		if(sizeClass < 0){
+			return new byte[minSize];
+		}
+		byte[] buffer = buffers.getAndSet(getSlot(sizeClass), null);
+		return buffer != null ? buffer : new byte[getClassSize(sizeClass)];
+	}
+
+	/**
+	 * Gives a buffer back. It must not be used afterwards.
+	 * @param buffer
+	 */
+	public static void release(byte[] buffer){
+		int sizeClass = getSizeClass(buffer.length);
+		if(sizeClass >= 0 && getClassSize(sizeClass) == buffer.length){
+			buffers.compareAndSet(getSlot(sizeClass), null, buffer);
+		}
+	}
+
+	/**
+	 * @return a stream writing to pooled buffers, to {@link BufferOutputStream#release() release} when done
+	 */
+	public static BufferOutputStream getOutputStream(){
+		return new BufferOutputStream();
+	}
+
+	/**
+	 * @return the smallest class that fits size, or -1 if it is too big to pool
+	 */
+	private static int getSizeClass(int size){
+		if(size > MAX_POOLED_SIZE){
+			return -1;
+		}
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(0, (bits - MIN_SIZE_SHIFT + CLASS_SHIFT - 1) / CLASS_SHIFT);
+	}
+
+	private static int getClassSize(int sizeClass){
+		return 1 << (MIN_SIZE_SHIFT + sizeClass * CLASS_SHIFT);
+	}
+
+	private static int getSlot(int sizeClass){
+		int stripe = (int) Thread.currentThread().getId() & STRIPE_MASK;
+		return stripe * SIZE_CLASSES + sizeClass;
+	}
+
+	/**
+	 * Like a ByteArrayOutputStream, but it grows by swapping in a buffer of the next size class,
+	 * and the written bytes can be read in place with {@link #getBuffer()} and {@link #size()}.
+	 * Closing it does nothing, so the bytes can still be read after closing a stream wrapped around it.
+	 */
+	public static final class BufferOutputStream extends OutputStream {
+		private byte[] buffer;
+		private int count;
+
+		private BufferOutputStream(){
+			buffer = acquire(0);
+		}
+
+		@Override
+		public void write(int b){
+			ensureCapacity(count + 1);
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length){
+			ensureCapacity(count + length);
+			System.arraycopy(b, offset, buffer, count, length);
+			count += length;
+		}
+
+		private void ensureCapacity(int size){
+			if(size <= buffer.length){
+				return;
+			}
+			if(size < 0){
+				throw new OutOfMemoryError("Buffer over 2GB");
+			}
+			byte[] grown = buffer.length < MAX_POOLED_SIZE
+					? acquire(Math.max(size, buffer.length + 1))
+					: new byte[Math.max(size, (int) Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L))];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			RedisBufferPool.release(buffer);
+			buffer = grown;
+		}
+
+		/**
+		 * @return the buffer written to, the first {@link #size()} bytes of it are valid
+		 */
+		public byte[] getBuffer(){
+			return buffer;
+		}
+
+		public int size(){
+			return count;
+		}
+
+		/**
+		 * Starts over, keeping the buffer
+		 */
+		public void reset(){
+			count = 0;
+		}
+
+		/**
+		 * @return a copy of the bytes written
+		 */
+		public byte[] toByteArray(){
+			return Arrays.copyOf(buffer, count);
+		}
+
+		/**
+		 * Gives the buffer back to the pool, the stream must not be used afterwards
+		 */
+		public void release(){
+			if(buffer != null){
+				RedisBufferPool.release(buffer);
+				buffer = null;
+			}
+		}
+	}
+}
@@ -15,188 +15,3306 @@
  * limitations under the License.
  */
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
 
 public class RedisCache {
 	private static final Log log = LogFactory.getLog(RedisCache.class);
 	//in case something happens to Jedis, we don't want to pollute the logs too much (just enough to know something is going on)
-	private int JEDIS_ERRORS = 0;
+	private final AtomicInteger JEDIS_ERRORS = new AtomicInteger();
+	//the configuration applied with configure
 	private Properties props = new Properties();
 	private String REDIS_HOST = "localhost";
 	private String REDIS_SLAVE_HOST = "localhost";
-	private JedisPool jedisPool, jedisSlavePool;
+	//master[:port][/slave[:port]] of every shard, comma separated
+	private String hosts = REDIS_HOST + "/" + REDIS_SLAVE_HOST;
+	private RedisShardLocator.Mode shardMode = RedisShardLocator.Mode.CONSISTENT_HASH;
+	private List<RedisShard> shards;
+	private RedisShardLocator locator;
+	//number of keys asked for per SCAN call
+	private static final int SCAN_COUNT = 1000;
+	//number of keys per MGET/DEL, and per pipeline sync, of the bulk operations
+	public static final int BULK_CHUNK_SIZE = 500;
+	//fall back to SCAN when an index doesn't exist yet (keys written before the indexes were introduced),
+	//only meant to be on while upgrading, see setScanFallback
+	private boolean scanFallback = false;
+	//SHA1 of every script that has been loaded, by script body
+	private final ConcurrentMap<String, String> scriptShas = new ConcurrentHashMap<String, String>();
+	//every value is written with this serializer
+	private volatile IRedisSerializer serializer = new JavaRedisSerializer();
+	//serializers values can be read with, by format header
+	private final ConcurrentMap<Byte, IRedisSerializer> deserializers = new ConcurrentHashMap<Byte, IRedisSerializer>();
+	
+	//runs the async operations, see setAsyncExecutor
+	private volatile Executor asyncExecutor;
+	//the executor created by this cache, shut down on destroy
+	private ExecutorService ownAsyncExecutor;
+	
+	/**
+	 * How commands get to Redis
+	 */
+	public enum Backend {
+		/** a pooled connection per command, a command fails when all of them are in use */
+		POOL,
+		/** a few connections shared by all threads, concurrent commands are pipelined */
+		MULTIPLEXED
+	}
+	private Backend backend = Backend.POOL;
+	//connections per node of the multiplexed backend
+	private int multiplexedConnections = 2;
+	//how long to wait for a reply on the multiplexed backend
+	private int commandTimeout = Protocol.DEFAULT_TIMEOUT;
+	
+	//channel the keys changed by a write are published on, for the near caches of other nodes
+	private static final String NEAR_CACHE_CHANNEL = "RedisCache-invalidate";
+	private volatile RedisNearCache nearCache;
+	//only keys with these prefixes are near cached
+	private String[] nearCachePrefixes = new String[0];
+	//sent along with invalidations, to skip our own
+	private final String nodeId = UUID.randomUUID().toString();
+	private Invalidator invalidator;
+	//keys to publish, written by the requests and sent in batches by the publisher
+	private static final int MAX_PENDING_INVALIDATIONS = 100000;
+	private final BlockingQueue<String> pendingInvalidations = new LinkedBlockingQueue<String>(MAX_PENDING_INVALIDATIONS);
+	//how often the publisher checks whether any other node listens, in milliseconds
+	private static final long LISTENER_CHECK_INTERVAL = 1000;
+	private Publisher publisher;
+	
+	//keeps reads of recent writes off the replica until it has them
+	private boolean readYourWrites = true;
+	//how often the replication offsets are compared, in milliseconds
+	private long replicationCheckInterval = 100;
+	
+	//connection failures of a shard within the window that stop calls to it, 0 to never stop them
+	private int failureThreshold = 5;
+	private long failureWindow = 10 * 1000;
+	//how often a stopped shard is pinged, in milliseconds
+	private long probeInterval = 1000;
+	//serves reads and keeps writes while a shard is stopped, null to fail them instead
+	private volatile RedisDegradedStore degradedStore;
+	private long degradedStoreSize = 0;
+	
+	//latencies, sizes and errors, also registered with JMX
+	private final RedisMetrics metrics = new RedisMetrics(this);
+	
+	//connections per pool, and how many are kept open (and opened on init) while idle
+	private int poolMaxTotal = 16;
+	private int poolMaxIdle = 8;
+	private int poolMinIdle = 2;
+	
+	public RedisCache(){
+		registerSerializer(serializer);
+		//lets the backend and shards be picked without code changes, like -Dredis.backend=MULTIPLEXED
+		configure(System.getProperties());
+	}
+	
+	/**
+	 * Applies the redis.* properties that are set, before init. These are
+	 * <ul>
+	 * <li>redis.hosts, see {@link #setHosts(String)}</li>
+	 * <li>redis.shardMode, redis.backend, redis.multiplexedConnections</li>
+	 * <li>redis.timeout, the socket and command timeout in milliseconds</li>
+	 * <li>redis.pool.maxTotal, redis.pool.maxIdle, redis.pool.minIdle</li>
+	 * <li>redis.readYourWrites, redis.replicationCheckInterval</li>
+	 * <li>redis.failureThreshold, redis.failureWindow, redis.probeInterval, redis.degradedStoreSize</li>
+	 * </ul>
+	 * @param config
+	 */
+	public void configure(Properties config){
+		for(String name : config.stringPropertyNames()){
+			if(!name.startsWith("redis.")){
+				continue;
+			}
+			String value = config.getProperty(name).trim();
+			if(name.equals("redis.hosts")){
+				hosts = value;
+			}else if(name.equals("redis.shardMode")){
+				shardMode = RedisShardLocator.Mode.valueOf(value.toUpperCase());
+			}else if(name.equals("redis.backend")){
+				backend = Backend.valueOf(value.toUpperCase());
+			}else if(name.equals("redis.multiplexedConnections")){
+				multiplexedConnections = Integer.parseInt(value);
+			}else if(name.equals("redis.timeout")){
+				commandTimeout = Integer.parseInt(value);
+			}else if(name.equals("redis.pool.maxTotal")){
+				poolMaxTotal = Integer.parseInt(value);
+			}else if(name.equals("redis.pool.maxIdle")){
+				poolMaxIdle = Integer.parseInt(value);
+			}else if(name.equals("redis.pool.minIdle")){
+				poolMinIdle = Integer.parseInt(value);
+			}else if(name.equals("redis.readYourWrites")){
+				readYourWrites = Boolean.parseBoolean(value);
+			}else if(name.equals("redis.replicationCheckInterval")){
+				replicationCheckInterval = Long.parseLong(value);
+			}else if(name.equals("redis.failureThreshold")){
+				failureThreshold = Integer.parseInt(value);
+			}else if(name.equals("redis.failureWindow")){
+				failureWindow = Long.parseLong(value);
+			}else if(name.equals("redis.probeInterval")){
+				probeInterval = Long.parseLong(value);
+			}else if(name.equals("redis.degradedStoreSize")){
+				degradedStoreSize = Long.parseLong(value);
+			}else{
+				continue;
+			}
+			props.setProperty(name, value);
+		}
+	}
+	
+	/**
+	 * @return the properties applied with {@link #configure(Properties)}
+	 */
+	public Properties getConfiguration(){
+		Properties config = new Properties();
+		config.putAll(props);
+		return config;
+	}
 	
 	public void init(){
 		try{
 			//Connecting to Redis
 			JedisPoolConfig poolConfig = new JedisPoolConfig();
 			poolConfig.setBlockWhenExhausted(false);
-			poolConfig.setMaxTotal(16);
-			jedisPool = new JedisPool(poolConfig, REDIS_HOST);
-			jedisSlavePool = new JedisPool(poolConfig, REDIS_SLAVE_HOST);
+			poolConfig.setMaxTotal(poolMaxTotal);
+			poolConfig.setMaxIdle(poolMaxIdle);
+			//the evictor closes idle connections after a minute, keep a few so a quiet node doesn't have to reconnect
+			poolConfig.setMinIdle(poolMinIdle);
+			List<RedisShard> shards = new ArrayList<RedisShard>();
+			for(String node : hosts.split(",")){
+				String[] masterAndSlave = node.split("/");
+				//with the multiplexed backend the pools stay around for SCAN and the other rarely used commands
+				shards.add(new RedisShard(masterAndSlave[0], masterAndSlave.length > 1 ? masterAndSlave[1] : masterAndSlave[0],
+					poolConfig, backend == Backend.MULTIPLEXED ? multiplexedConnections : 0, commandTimeout,
+					readYourWrites ? replicationCheckInterval : 0));
+			}
+			this.shards = shards;
+			locator = new RedisShardLocator(shards, shardMode);
+			metrics.register();
+			if(degradedStoreSize > 0){
+				degradedStore = new RedisDegradedStore(degradedStoreSize);
+				//its clean copies are dropped when other nodes change them
+				startInvalidator();
+			}
+			if(failureThreshold > 0){
+				for(final RedisShard shard : shards){
+					shard.setCircuitBreaker(new RedisCircuitBreaker(shard.getHost(), shard.getPort(), failureThreshold,
+						failureWindow, probeInterval, new Runnable(){
+							@Override
+							public void run(){
+								reconcile(shard);
+							}
+						}));
+				}
+			}
+			if(asyncExecutor == null){
+				//no more threads than pooled connections, a task on a thread beyond that would find the pool exhausted
+				ownAsyncExecutor = new ThreadPoolExecutor(poolConfig.getMaxTotal(), poolConfig.getMaxTotal(),
+						60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new AsyncThreadFactory());
+				((ThreadPoolExecutor) ownAsyncExecutor).allowCoreThreadTimeOut(true);
+				asyncExecutor = ownAsyncExecutor;
+			}
 		}catch(Exception e){
 			log.error(e.getMessage(), e);
 		}
 	}	
 	
+	/**
+	 * Opens the idle connections up front, so the first requests don't wait for them to connect.
+	 * A node that can't be reached is logged and left to connect on first use.
+	 */
+	public void warmUp(){
+		for(RedisShard shard : shards){
+			try{
+				shard.warmUp(Math.max(poolMinIdle, 1));
+			}catch(Exception e){
+				failed(shard, e);
+			}
+		}
+	}
+	
 	public void destroy(){
+		metrics.unregister();
+		if(ownAsyncExecutor != null){
+			ownAsyncExecutor.shutdown();
+		}
+		if(invalidator != null){
+			invalidator.stop();
+			publisher.stop();
+		}
+		for(RedisShard shard : shards){
+			try{
+				shard.destroy();
+			}catch(Exception e){
+				log.error(e.getMessage() ,e);
+			}
+		}
+	}
+	
+	/**
+	 * Deletes all cache items that start with the passed in prefix. This walks the
+	 * keyspace with SCAN, so prefer {@link #clearIndexed(String, String)} for keys that are indexed.
+	 * @param prefix
+	 */
+	public void clearCachePrefix(String prefix){
+		Set<String> keys = getCachedKeys(prefix);
+		if(!keys.isEmpty()){
+			multiDelete(keys);
+		}
+	}
+	
+	/**
+	 * Deletes every key recorded in the index along with the index itself
+	 * @param indexKey
+	 * @param keyPrefix prefix of the indexed keys, used to rebuild a missing index
+	 * @param otherKeys more keys to delete in the same round trip
+	 */
+	public void clearIndexed(String indexKey, String keyPrefix, String... otherKeys){
+		Set<String> keys = new HashSet<String>(getIndexedKeys(indexKey, keyPrefix));
+		List<RedisShard> indexShards = getIndexShards(indexKey);
+		if(indexShards.size() == 1){
+			keys.add(indexKey);
+		}
+		Collections.addAll(keys, otherKeys);
+		multiDelete(keys);
+		if(indexShards.size() > 1){
+			for(RedisShard shard : indexShards){
+				multiDelete(shard, Collections.singletonList(indexKey));
+			}
+		}
+	}
+	
+	/**
+	 * Reads many keys with MGET, split into chunks of {@link #BULK_CHUNK_SIZE} keys
+	 * @param keys
+	 * @return the stored bytes in the order of the keys, null for keys that don't exist
+	 */
+	public List<byte[]> multiGet(List<String> keys){
+		if(shards.size() == 1){
+			return multiGet(shards.get(0), keys);
+		}
+		//read the keys of each shard, and put the values back in the order of the keys
+		Map<RedisShard, List<Integer>> positions = new LinkedHashMap<RedisShard, List<Integer>>();
+		for(int i = 0; i < keys.size(); i++){
+			RedisShard shard = getShard(keys.get(i));
+			List<Integer> shardPositions = positions.get(shard);
+			if(shardPositions == null){
+				shardPositions = new ArrayList<Integer>();
+				positions.put(shard, shardPositions);
+			}
+			shardPositions.add(i);
+		}
+		byte[][] values = new byte[keys.size()][];
+		for(Map.Entry<RedisShard, List<Integer>> entry : positions.entrySet()){
+			List<String> shardKeys = new ArrayList<String>(entry.getValue().size());
+			for(int position : entry.getValue()){
+				shardKeys.add(keys.get(position));
+			}
+			List<byte[]> shardValues = multiGet(entry.getKey(), shardKeys);
+			for(int i = 0; i < shardValues.size(); i++){
+				values[entry.getValue().get(i)] = shardValues.get(i);
+			}
+		}
+		return Arrays.asList(values);
+	}
+	
+	private List<byte[]> multiGet(RedisShard shard, List<String> keys){
+		List<byte[]> values = new ArrayList<byte[]>(keys.size());
+		if(!shard.isAvailable()){
+			for(String key : keys){
+				values.add(degradedGet(key));
+			}
+			return values;
+		}
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				for(int from = 0; from < keys.size(); from += BULK_CHUNK_SIZE){
+					List<String> chunk = keys.subList(from, Math.min(from + BULK_CHUNK_SIZE, keys.size()));
+					commands.add(command("MGET", encodeAll(chunk)));
+				}
+				for(Object reply : executeBatch(shard, shard.readFromMaster(keys), commands)){
+					for(Object value : (List<?>) reply){
+						values.add((byte[]) value);
+					}
+				}
+				keepAll(keys, values);
+			}catch(Exception e){
+				failed(shard, e);
+				values.clear();
+				while(values.size() < keys.size()){
+					values.add(null);
+				}
+			}
+			return values;
+		}
+		JedisPool pool = shard.readFromMaster(keys) ? shard.pool : shard.slavePool;
+		long start = System.nanoTime();
+		Jedis jedis = null;
 		try{
-			jedisPool.destroy();
+			jedis = borrow(pool);
+			for(int from = 0; from < keys.size(); from += BULK_CHUNK_SIZE){
+				List<String> chunk = keys.subList(from, Math.min(from + BULK_CHUNK_SIZE, keys.size()));
+				values.addAll(jedis.mget(encodeAll(chunk)));
+			}
+			keepAll(keys, values);
 		}catch(Exception e){
-			log.error(e.getMessage() ,e);
+			failed(shard, e);
+			//keep the result aligned with the keys
+			while(values.size() < keys.size()){
+				values.add(null);
+			}
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.GET, pool != shard.slavePool, start);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Reads and deserializes many keys, see {@link #multiGet(List)}
+	 * @param keys
+	 * @return the objects by key, keys that don't exist or can't be read are left out
+	 */
+	public Map<String, Object> multiGetObjects(List<String> keys){
+		Map<String, Object> objects = new LinkedHashMap<String, Object>();
+		List<byte[]> values = multiGet(keys);
+		for(int i = 0; i < keys.size(); i++){
+			Object o = deserialize(values.get(i));
+			if(o != null){
+				objects.put(keys.get(i), o);
+			}
+		}
+		return objects;
+	}
+	
+	/**
+	 * Stores many keys in pipelined chunks of {@link #BULK_CHUNK_SIZE} keys
+	 * @param values bytes to store, by key
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void multiStore(Map<String, byte[]> values, int expireSeconds){
+		multiStore(values, expireSeconds, null);
+	}
+	
+	/**
+	 * Stores many keys in pipelined chunks of {@link #BULK_CHUNK_SIZE} keys, and records them in the index.
+	 * The index doesn't expire, like {@link #storeBytes(String, byte[], String, int, boolean)} with expireIndex false.
+	 * @param values bytes to store, by key
+	 * @param expireSeconds 0 for no expiry
+	 * @param indexKey index the keys are recorded in, null for none
+	 */
+	public void multiStore(Map<String, byte[]> values, int expireSeconds, String indexKey){
+		if(shards.size() == 1){
+			multiStore(shards.get(0), values, expireSeconds, indexKey);
+			return;
+		}
+		Map<RedisShard, Map<String, byte[]>> byShard = new LinkedHashMap<RedisShard, Map<String, byte[]>>();
+		for(Map.Entry<String, byte[]> entry : values.entrySet()){
+			RedisShard shard = getShard(entry.getKey());
+			Map<String, byte[]> shardValues = byShard.get(shard);
+			if(shardValues == null){
+				shardValues = new LinkedHashMap<String, byte[]>();
+				byShard.put(shard, shardValues);
+			}
+			shardValues.put(entry.getKey(), entry.getValue());
+		}
+		for(Map.Entry<RedisShard, Map<String, byte[]>> entry : byShard.entrySet()){
+			multiStore(entry.getKey(), entry.getValue(), expireSeconds, indexKey);
+		}
+	}
+	
+	private void multiStore(RedisShard shard, Map<String, byte[]> values, int expireSeconds, String indexKey){
+		Collection<String> deletes = Collections.emptyList();
+		if(!shard.isAvailable()){
+			for(Map.Entry<String, byte[]> entry : values.entrySet()){
+				degradedWrite(entry.getKey(), entry.getValue(), expireSeconds, indexKey, false);
+			}
+			written(values.keySet());
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				long score = System.currentTimeMillis();
+				for(Map.Entry<String, byte[]> entry : values.entrySet()){
+					commands.add(setCommand(entry.getKey(), entry.getValue(), expireSeconds));
+					if(indexKey != null){
+						commands.add(command("ZADD", indexKey, score, entry.getKey()));
+					}
+					if(commands.size() >= BULK_CHUNK_SIZE){
+						executeBatch(shard, true, commands);
+						commands = new ArrayList<byte[][]>();
+					}
+				}
+				executeBatch(shard, true, commands);
+				keepAll(values, deletes, indexKey);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(values.keySet());
+			}
+			return;
 		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
 		try{
-			jedisSlavePool.destroy();
+			jedis = borrow(shard.pool);
+			Pipeline p = jedis.pipelined();
+			double score = System.currentTimeMillis();
+			int count = 0;
+			for(Map.Entry<String, byte[]> entry : values.entrySet()){
+				if(expireSeconds > 0){
+					p.setex(SafeEncoder.encode(entry.getKey()), expireSeconds, entry.getValue());
+				}else{
+					p.set(SafeEncoder.encode(entry.getKey()), entry.getValue());
+				}
+				if(indexKey != null){
+					p.zadd(indexKey, score, entry.getKey());
+				}
+				if(++count % BULK_CHUNK_SIZE == 0){
+					//don't let the replies of a huge batch pile up
+					p.sync();
+				}
+			}
+			p.sync();
+			keepAll(values, deletes, indexKey);
 		}catch(Exception e){
-			log.error(e.getMessage() ,e);
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+			written(values.keySet());
 		}
 	}
 	
 	/**
-	 * Deletes all cache items that start with the passed in prefix
-	 * @param prefix
+	 * Deletes many keys, with one DEL per chunk of {@link #BULK_CHUNK_SIZE} keys, pipelined
+	 * @param keys
 	 */
-	public void clearCachePrefix(String prefix){
+	public void multiDelete(Collection<String> keys){
+		for(Map.Entry<RedisShard, List<String>> entry : groupByShard(keys).entrySet()){
+			multiDelete(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	private void multiDelete(RedisShard shard, Collection<String> keys){
+		if(keys.isEmpty()){
+			return;
+		}
+		if(!shard.isAvailable()){
+			for(String key : keys){
+				degradedWrite(key, null, 0, null, false);
+			}
+			written(keys);
+			return;
+		}
+		List<String> list = new ArrayList<String>(keys);
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				for(int from = 0; from < list.size(); from += BULK_CHUNK_SIZE){
+					commands.add(command("DEL", encodeAll(list.subList(from, Math.min(from + BULK_CHUNK_SIZE, list.size())))));
+				}
+				executeBatch(shard, true, commands);
+				forgetAll(keys);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(keys);
+			}
+			return;
+		}
+		long start = System.nanoTime();
 		Jedis jedis = null;
 		try{
-			jedis = jedisPool.getResource();
-			for(String key : jedis.keys(prefix + "*")){
-				deleteCacheObject(key);
+			jedis = borrow(shard.pool);
+			if(list.size() <= BULK_CHUNK_SIZE){
+				jedis.del(list.toArray(new String[list.size()]));
+			}else{
+				Pipeline p = jedis.pipelined();
+				for(int from = 0; from < list.size(); from += BULK_CHUNK_SIZE){
+					List<String> chunk = list.subList(from, Math.min(from + BULK_CHUNK_SIZE, list.size()));
+					p.del(chunk.toArray(new String[chunk.size()]));
+				}
+				p.sync();
 			}
+			forgetAll(keys);
 		}catch(Exception e){
-			logJedisError(e);
+			failed(shard, e);
 		}finally{
 			if(jedis != null){
-				jedisPool.returnResource(jedis);
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.DELETE, true, start);
 			}
+			written(keys);
+		}
+	}
+	
+	private static List<String> decodeAll(List<byte[]> keys){
+		List<String> decoded = new ArrayList<String>(keys.size());
+		for(byte[] key : keys){
+			decoded.add(SafeEncoder.encode(key));
 		}
+		return decoded;
+	}
+	
+	private static byte[][] encodeAll(List<String> keys){
+		byte[][] encoded = new byte[keys.size()][];
+		for(int i = 0; i < encoded.length; i++){
+			encoded[i] = SafeEncoder.encode(keys.get(i));
+		}
+		return encoded;
 	}
 	
 	public Object getCacheObject(String key){
-		Jedis jedis = null;
 		try{
-			jedis = jedisSlavePool.getResource();
-			Object obj = null;
-			String serialized = jedis.get(key);
-			if(serialized != null && !"".equals(serialized)){
-				obj = fromString(serialized);
+			byte[] data = getBytes(key);
+			if(data != null && data.length > 0){
+				return fromBytes(data);
 			}
-			return obj;
+			return null;
 		}catch(Exception e){
 			logJedisError(e);
 			return null;
+		}
+	}
+	
+	/**
+	 * Reads the raw value stored under the key, without any decoding
+	 * @param key
+	 * @return the stored bytes or null if the key does not exist
+	 */
+	public byte[] getBytes(String key){
+		RedisNearCache near = getNearCache(key);
+		if(near == null){
+			return readBytes(key);
+		}
+		byte[] data = near.get(key);
+		if(data == null){
+			long stamp = near.stamp();
+			data = readBytes(key);
+			near.put(key, data, stamp);
+		}
+		return data;
+	}
+	
+	private byte[] readBytes(String key){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			return degradedGet(key);
+		}
+		if(isMultiplexed()){
+			try{
+				return keep(RedisMetrics.Operation.GET, key, (byte[]) execute(shard, shard.readFromMaster(key), "GET", key), null);
+			}catch(Exception e){
+				failed(shard, e);
+				return null;
+			}
+		}
+		JedisPool pool = shard.readPool(key);
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(pool);
+			return keep(RedisMetrics.Operation.GET, key, jedis.get(SafeEncoder.encode(key)), null);
+		}catch(Exception e){
+			failed(shard, e);
+			return null;
 		}finally{
 			if(jedis != null){
-				jedisSlavePool.returnResource(jedis);
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.GET, pool != shard.slavePool, start);
 			}
 		}
 	}
 	
-	/** Read the object from Base64 string. */
-	private static Object fromString( String s ) throws IOException ,
+	/** Read the object from its serialized bytes, with the serializer of its format. */
+	private Object fromBytes( byte[] data ) throws IOException ,
 	ClassNotFoundException {
-		byte [] data = Base64.decodeBase64( s );
-		ObjectInputStream ois = new ObjectInputStream( 
-				new ByteArrayInputStream(  data ) );
-		Object o  = ois.readObject();
-		ois.close();
+		return fromBytes(data, null);
+	}
+	
+	/** Read the object from its serialized bytes, with the given serializer if it is of its format. */
+	private Object fromBytes(byte[] data, IRedisSerializer preferred) throws IOException, ClassNotFoundException{
+		IRedisSerializer s = preferred != null && preferred.getFormatId() == data[0] ? preferred : deserializers.get(data[0]);
+		if(s == null){
+			throw new IOException("No serializer registered for format " + data[0]);
+		}
+		long start = System.nanoTime();
+		Object o = s.deserialize(data);
+		metrics.serialization(false, start, data.length);
 		return o;
 	}
 	
-	/** Write the object to a Base64 string. */
-	private static String toString( Serializable o ) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream( baos );
-		oos.writeObject( o );
-		oos.close();
-		return new String( Base64.encodeBase64( baos.toByteArray() ) );
+	/** Write the object to its serialized bytes. */
+	private byte[] toBytes( Serializable o ) throws IOException {
+		return toBytes(o, serializer);
+	}
+	
+	private byte[] toBytes(Serializable o, IRedisSerializer serializer) throws IOException{
+		long start = System.nanoTime();
+		byte[] data = serializer.serialize(o);
+		metrics.serialization(true, start, data.length);
+		return data;
+	}
+	
+	public IRedisSerializer getSerializer(){
+		return serializer;
+	}
+	
+	/**
+	 * Sets the serializer every value is written with. It is registered for reading as well.
+	 * @param serializer
+	 */
+	public void setSerializer(IRedisSerializer serializer){
+		registerSerializer(serializer);
+		this.serializer = serializer;
+	}
+	
+	/**
+	 * Registers a serializer that values can be read with, by its format header.
+	 * Register the formats other nodes may write, like during a rolling deploy.
+	 * @param serializer
+	 */
+	public void registerSerializer(IRedisSerializer serializer){
+		deserializers.put(serializer.getFormatId(), serializer);
+	}
+	
+	/**
+	 * Serializes the object the same way {@link #storeCacheObject(String, Serializable)} does
+	 * @param obj
+	 * @return the serialized bytes, or null if the object could not be serialized
+	 */
+	public byte[] serialize(Serializable obj){
+		return serialize(obj, serializer);
+	}
+	
+	/**
+	 * Serializes the object with a serializer of the caller's, for stores that don't write with the
+	 * serializer of this shared cache
+	 * @param obj
+	 * @param serializer
+	 * @return the serialized bytes, or null if the object could not be serialized
+	 */
+	public byte[] serialize(Serializable obj, IRedisSerializer serializer){
+		try{
+			return toBytes(obj, serializer);
+		}catch(Exception e){
+			log.error(e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Deserializes bytes read with {@link #getBytes(String)} or {@link #getHashBytes(String, String)}
+	 * @param data
+	 * @return the object, or null if the bytes could not be deserialized
+	 */
+	public Object deserialize(byte[] data){
+		return deserialize(data, null);
+	}
+	
+	/**
+	 * Deserializes bytes with a serializer of the caller's if they are of its format, otherwise with the
+	 * serializer registered for their format
+	 * @param data
+	 * @param serializer
+	 * @return the object, or null if the bytes could not be deserialized
+	 */
+	public Object deserialize(byte[] data, IRedisSerializer serializer){
+		if(data == null || data.length == 0){
+			return null;
+		}
+		try{
+			return fromBytes(data, serializer);
+		}catch(Exception e){
+			log.error(e.getMessage(), e);
+			return null;
+		}
 	}
 	
 	public void storeCacheObject(String key, Serializable obj){
-		Jedis jedis = null;
 		try{
-			jedis = jedisPool.getResource();
-			jedis.set(key, toString(obj));
+			storeBytes(key, toBytes(obj));
 		}catch(Exception e){
 			logJedisError(e);
+		}
+	}
+	
+	/**
+	 * Stores the bytes as they are, using the binary Jedis commands. The array
+	 * is handed to the connection directly, so there is no codec or extra copy.
+	 * @param key
+	 * @param data
+	 */
+	public void storeBytes(String key, byte[] data){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(key, data, 0, null, false);
+			written(key);
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "SET", key, data);
+				keep(RedisMetrics.Operation.STORE, key, data, null);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(key);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.set(SafeEncoder.encode(key), data);
+			keep(RedisMetrics.Operation.STORE, key, data, null);
+		}catch(Exception e){
+			failed(shard, e);
 		}finally{
 			if(jedis != null){
-				jedisPool.returnResource(jedis);
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
 			}
+			written(key);
 		}
 	}
 	
-	public void setExpire(String key, int seconds){
+	/**
+	 * Reads a plain string value, as written by {@link #storeString(String, String)} or a script
+	 * @param key
+	 * @return the value or null if the key does not exist
+	 */
+	public String getString(String key){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			byte[] value = degradedGet(key);
+			return value == null ? null : SafeEncoder.encode(value);
+		}
+		if(isMultiplexed()){
+			try{
+				byte[] value = keep(RedisMetrics.Operation.GET, key, (byte[]) execute(shard, shard.readFromMaster(key), "GET", key), null);
+				return value == null ? null : SafeEncoder.encode(value);
+			}catch(Exception e){
+				failed(shard, e);
+				return null;
+			}
+		}
+		JedisPool pool = shard.readPool(key);
+		long start = System.nanoTime();
 		Jedis jedis = null;
 		try{
-			jedis = jedisPool.getResource();
-			jedis.expire(key, seconds);
+			jedis = borrow(pool);
+			String value = jedis.get(key);
+			keep(RedisMetrics.Operation.GET, key, value == null ? null : SafeEncoder.encode(value), null);
+			return value;
 		}catch(Exception e){
-			logJedisError(e);
+			failed(shard, e);
+			return null;
 		}finally{
 			if(jedis != null){
-				jedisPool.returnResource(jedis);
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.GET, pool != shard.slavePool, start);
 			}
 		}
 	}
 	
-	public void deleteCacheObject(String key){
+	/**
+	 * Stores a plain string value, readable by scripts
+	 * @param key
+	 * @param value
+	 */
+	public void storeString(String key, String value){
+		storeString(key, value, 0);
+	}
+	
+	/**
+	 * Stores a plain string value, readable by scripts
+	 * @param key
+	 * @param value
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void storeString(String key, String value, int expireSeconds){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(key, SafeEncoder.encode(value), expireSeconds, null, false);
+			written(key);
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, setCommand(key, SafeEncoder.encode(value), expireSeconds));
+				keep(RedisMetrics.Operation.STORE, key, SafeEncoder.encode(value), null);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(key);
+			}
+			return;
+		}
+		long start = System.nanoTime();
 		Jedis jedis = null;
 		try{
-			jedis = jedisPool.getResource();
-			jedis.del(key);
-		} catch (Exception e) {
-			logJedisError(e);
+			jedis = borrow(shard.pool);
+			if(expireSeconds > 0){
+				jedis.setex(key, expireSeconds, value);
+			}else{
+				jedis.set(key, value);
+			}
+			keep(RedisMetrics.Operation.STORE, key, SafeEncoder.encode(value), null);
+		}catch(Exception e){
+			failed(shard, e);
 		}finally{
 			if(jedis != null){
-				jedisPool.returnResource(jedis);
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
 			}
+			written(key);
 		}
 	}
 	
-	public Set<String> getCachedKeys(String keyPrefix){
-		Set<String> keys = new HashSet<String>();
+	/**
+	 * Runs a Lua script on the master. The script is sent once and run by its SHA1 after that.
+	 * @param script
+	 * @param keys
+	 * @param args
+	 * @return the script's reply, or null if it failed
+	 */
+	public Object evalScript(String script, List<String> keys, List<String> args){
+		//the Jedis string API hands back strings for bulk replies, do the same
+		return decodeStrings(evalBinaryScript(script, Arrays.asList(encodeAll(keys)), Arrays.asList(encodeAll(args))));
+	}
+	
+	/**
+	 * Runs a Lua script with binary keys and arguments on the master, like {@link #evalScript(String, List, List)}
+	 * @param script
+	 * @param keys
+	 * @param args
+	 * @return the script's reply, or null if it failed
+	 */
+	public Object evalBinaryScript(String script, final List<byte[]> keys, final List<byte[]> args){
+		RedisShard shard = getShard(decodeAll(keys));
+		if(!shard.isAvailable()){
+			//a script can't run against the local store, its caller falls back as it would for any failure
+			forgetAll(decodeAll(keys));
+			return null;
+		}
+		if(isMultiplexed()){
+			try{
+				return evalMultiplexed(shard, script, keys.toArray(new byte[keys.size()][]), args.toArray(new byte[args.size()][]));
+			}catch(Exception e){
+				failed(shard, e);
+				return null;
+			}finally{
+				forgetAll(decodeAll(keys));
+				written(decodeAll(keys));
+			}
+		}
+		long start = System.nanoTime();
 		Jedis jedis = null;
 		try{
-			jedis = jedisSlavePool.getResource();
-			keys = jedis.keys(keyPrefix + "*");
+			final Jedis borrowed = jedis = borrow(shard.pool);
+			return evalSha(script, new ScriptRunner(){
+				@Override
+				public Object evalSha(String sha){
+					return borrowed.evalsha(SafeEncoder.encode(sha), keys, args);
+				}
+				
+				@Override
+				public String load(String script){
+					return borrowed.scriptLoad(script);
+				}
+			});
 		}catch(Exception e){
-			logJedisError(e);
+			failed(shard, e);
+			return null;
 		}finally{
 			if(jedis != null){
-				jedisSlavePool.returnResource(jedis);
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.SCRIPT, true, start);
 			}
+			forgetAll(decodeAll(keys));
+			written(decodeAll(keys));
 		}
-		return keys;
 	}
 	
+	/**
+	 * Runs a script over one of the backends
+	 */
+	private interface ScriptRunner {
+		Object evalSha(String sha) throws Exception;
+		
+		/**
+		 * @return the SHA1 of the loaded script
+		 */
+		String load(String script) throws Exception;
+	}
 	
-	private void logJedisError(Exception e){
-		//we dont want to pollute the logs if the cache goes down, just enough to know that its down
-		if(JEDIS_ERRORS < 100 || JEDIS_ERRORS % 100000 == 0){
-			log.error(e.getMessage(), e);
-			if(JEDIS_ERRORS > 100){
-				log.error("\n*****\nCheck if Jedis server is down. No cache is being used.\n*****\n");
-				//restart count
-				JEDIS_ERRORS = 100;
-			}			
+	/**
+	 * Runs a script by its SHA1, loading it first when it hasn't been loaded yet or the server lost it
+	 */
+	private Object evalSha(String script, ScriptRunner runner) throws Exception{
+		String sha = scriptShas.get(script);
+		if(sha != null){
+			try{
+				return runner.evalSha(sha);
+			}catch(JedisDataException e){
+				if(e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")){
+					throw e;
+				}
+				//the server lost its script cache (restart or failover), load it again below
+			}
+		}
+		sha = runner.load(script);
+		scriptShas.put(script, sha);
+		return runner.evalSha(sha);
+	}
+	
+	/**
+	 * Stores the object and records its key in the index, in one MULTI round trip
+	 * @param key
+	 * @param obj
+	 * @param indexKey
+	 */
+	public void storeCacheObject(String key, Serializable obj, String indexKey){
+		try{
+			storeBytes(key, toBytes(obj), indexKey);
+		}catch(Exception e){
+			logJedisError(e);
+		}
+	}
+	
+	/**
+	 * Stores the bytes and records the key in the index, in one MULTI round trip.
+	 * The index is a sorted set scored by the time of the last write.
+	 * @param key
+	 * @param data
+	 * @param indexKey
+	 */
+	public void storeBytes(String key, byte[] data, String indexKey){
+		storeBytes(key, data, indexKey, 0);
+	}
+	
+	/**
+	 * Stores the bytes and records the key in the index, in one MULTI round trip.
+	 * Both the key and the index expire after the given number of seconds.
+	 * @param key
+	 * @param data
+	 * @param indexKey
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void storeBytes(String key, byte[] data, String indexKey, int expireSeconds){
+		storeBytes(key, data, indexKey, expireSeconds, true);
+	}
+	
+	/**
+	 * Stores the bytes and records the key in the index, in one MULTI round trip.
+	 * The key expires after the given number of seconds.
+	 * @param key
+	 * @param data
+	 * @param indexKey
+	 * @param expireSeconds 0 for no expiry
+	 * @param expireIndex whether the index expires along with the key, false for indexes shared
+	 * by keys that expire independently
+	 */
+	public void storeBytes(String key, byte[] data, String indexKey, int expireSeconds, boolean expireIndex){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(key, data, expireSeconds, indexKey, expireIndex);
+			written(key, indexKey);
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				commands.add(setCommand(key, data, expireSeconds));
+				commands.add(command("ZADD", indexKey, System.currentTimeMillis(), key));
+				if(expireSeconds > 0 && expireIndex){
+					commands.add(command("EXPIRE", indexKey, expireSeconds));
+				}
+				executeTransaction(shard, commands);
+				keep(RedisMetrics.Operation.STORE, key, data, indexKey);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(key, indexKey);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			Transaction t = jedis.multi();
+			if(expireSeconds > 0){
+				t.setex(SafeEncoder.encode(key), expireSeconds, data);
+			}else{
+				t.set(SafeEncoder.encode(key), data);
+			}
+			t.zadd(indexKey, System.currentTimeMillis(), key);
+			if(expireSeconds > 0 && expireIndex){
+				t.expire(indexKey, expireSeconds);
+			}
+			t.exec();
+			keep(RedisMetrics.Operation.STORE, key, data, indexKey);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+			written(key, indexKey);
+		}
+	}
+	
+	public void setExpire(String key, int seconds){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "EXPIRE", key, seconds);
+			}catch(Exception e){
+				failed(shard, e);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.expire(key, seconds);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.EXPIRE, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the expiry of a batch of keys and indexes in one pipelined round trip, and a second one
+	 * when there are indexes. Expiring an index expires every key recorded in it as well.
+	 * @param keys seconds to expire in, by key
+	 * @param indexKeys seconds to expire in, by index
+	 */
+	public void expireBatch(Map<String, Integer> keys, Map<String, Integer> indexKeys){
+		if(shards.size() == 1){
+			expireBatch(shards.get(0), keys, indexKeys);
+			return;
+		}
+		Map<RedisShard, Map<String, Integer>> keysByShard = new LinkedHashMap<RedisShard, Map<String, Integer>>();
+		Map<RedisShard, Map<String, Integer>> indexKeysByShard = new LinkedHashMap<RedisShard, Map<String, Integer>>();
+		for(RedisShard shard : shards){
+			keysByShard.put(shard, new LinkedHashMap<String, Integer>());
+			indexKeysByShard.put(shard, new LinkedHashMap<String, Integer>());
+		}
+		for(Map.Entry<String, Integer> entry : keys.entrySet()){
+			keysByShard.get(getShard(entry.getKey())).put(entry.getKey(), entry.getValue());
+		}
+		for(Map.Entry<String, Integer> entry : indexKeys.entrySet()){
+			for(RedisShard shard : getIndexShards(entry.getKey())){
+				indexKeysByShard.get(shard).put(entry.getKey(), entry.getValue());
+			}
+		}
+		for(RedisShard shard : shards){
+			if(!keysByShard.get(shard).isEmpty() || !indexKeysByShard.get(shard).isEmpty()){
+				expireBatch(shard, keysByShard.get(shard), indexKeysByShard.get(shard));
+			}
+		}
+	}
+	
+	private void expireBatch(RedisShard shard, Map<String, Integer> keys, Map<String, Integer> indexKeys){
+		if(!shard.isAvailable()){
+			//the keys are refreshed again on their next use after the shard is back
+			return;
+		}
+		//the keys recorded in the indexes are read along with the first batch and expired in a second
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				for(Map.Entry<String, Integer> entry : keys.entrySet()){
+					commands.add(command("EXPIRE", entry.getKey(), entry.getValue()));
+				}
+				for(Map.Entry<String, Integer> entry : indexKeys.entrySet()){
+					commands.add(command("EXPIRE", entry.getKey(), entry.getValue()));
+					commands.add(command("ZRANGE", entry.getKey(), 0, -1));
+				}
+				List<Object> replies = executeBatch(shard, true, commands);
+				List<byte[][]> indexed = new ArrayList<byte[][]>();
+				int reply = keys.size() + 1;
+				for(Map.Entry<String, Integer> entry : indexKeys.entrySet()){
+					if(replies.get(reply) instanceof List){
+						for(Object member : (List<?>) replies.get(reply)){
+							indexed.add(command("EXPIRE", member, entry.getValue()));
+						}
+					}
+					reply += 2;
+				}
+				executeBatch(shard, true, indexed);
+			}catch(Exception e){
+				failed(shard, e);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			Pipeline p = jedis.pipelined();
+			for(Map.Entry<String, Integer> entry : keys.entrySet()){
+				p.expire(entry.getKey(), entry.getValue());
+			}
+			Map<String, Response<Set<String>>> indexed = new LinkedHashMap<String, Response<Set<String>>>();
+			for(Map.Entry<String, Integer> entry : indexKeys.entrySet()){
+				p.expire(entry.getKey(), entry.getValue());
+				indexed.put(entry.getKey(), p.zrange(entry.getKey(), 0, -1));
+			}
+			p.sync();
+			if(!indexed.isEmpty()){
+				p = jedis.pipelined();
+				for(Map.Entry<String, Response<Set<String>>> entry : indexed.entrySet()){
+					for(String key : entry.getValue().get()){
+						p.expire(key, indexKeys.get(entry.getKey()));
+					}
+				}
+				p.sync();
+			}
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.EXPIRE, true, start);
+			}
+		}
+	}
+	
+	public void deleteCacheObject(String key){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(key, null, 0, null, false);
+			written(key);
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "DEL", key);
+				forget(key);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(key);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.del(key);
+			forget(key);
+		} catch (Exception e) {
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.DELETE, true, start);
+			}
+			written(key);
+		}
+	}
+	
+	/**
+	 * Reads one field of a hash and deserializes it
+	 * @param key
+	 * @param field
+	 * @return the stored object or null if the field does not exist
+	 */
+	public Object getHashObject(String key, String field){
+		try{
+			byte[] data = getHashBytes(key, field);
+			if(data != null && data.length > 0){
+				return fromBytes(data);
+			}
+			return null;
+		}catch(Exception e){
+			logJedisError(e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the raw value of one field of a hash
+	 * @param key
+	 * @param field
+	 * @return the stored bytes or null if the field does not exist
+	 */
+	public byte[] getHashBytes(String key, String field){
+		RedisNearCache near = getNearCache(key);
+		if(near == null){
+			return readHashBytes(key, field);
+		}
+		String fieldKey = RedisNearCache.fieldKey(key, field);
+		byte[] data = near.get(fieldKey);
+		if(data == null){
+			long stamp = near.stamp();
+			data = readHashBytes(key, field);
+			near.put(fieldKey, data, stamp);
+		}
+		return data;
+	}
+	
+	private byte[] readHashBytes(String key, String field){
+		RedisShard shard = getShard(key);
+		String fieldKey = RedisNearCache.fieldKey(key, field);
+		if(!shard.isAvailable()){
+			return degradedGet(fieldKey);
+		}
+		if(isMultiplexed()){
+			try{
+				return keep(RedisMetrics.Operation.GET, fieldKey, (byte[]) execute(shard, shard.readFromMaster(key), "HGET", key, field), key);
+			}catch(Exception e){
+				failed(shard, e);
+				return null;
+			}
+		}
+		JedisPool pool = shard.readPool(key);
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(pool);
+			return keep(RedisMetrics.Operation.GET, fieldKey, jedis.hget(SafeEncoder.encode(key), SafeEncoder.encode(field)), key);
+		}catch(Exception e){
+			failed(shard, e);
+			return null;
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.GET, pool != shard.slavePool, start);
+			}
+		}
+	}
+	
+	public void storeHashObject(String key, String field, Serializable obj){
+		try{
+			storeHashBytes(key, field, toBytes(obj));
+		}catch(Exception e){
+			logJedisError(e);
+		}
+	}
+	
+	public void storeHashBytes(String key, String field, byte[] data){
+		storeHashBytes(key, field, data, 0);
+	}
+	
+	/**
+	 * Stores one field of a hash, the whole hash expires after the given number of seconds
+	 * @param key
+	 * @param field
+	 * @param data
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void storeHashBytes(String key, String field, byte[] data, int expireSeconds){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(RedisNearCache.fieldKey(key, field), data, expireSeconds, key, true);
+			written(RedisNearCache.fieldKey(key, field));
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				if(expireSeconds > 0){
+					List<byte[][]> commands = new ArrayList<byte[][]>();
+					commands.add(command("HSET", key, field, data));
+					commands.add(command("EXPIRE", key, expireSeconds));
+					executeTransaction(shard, commands);
+				}else{
+					execute(shard, true, "HSET", key, field, data);
+				}
+				keep(RedisMetrics.Operation.STORE, RedisNearCache.fieldKey(key, field), data, key);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(RedisNearCache.fieldKey(key, field));
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			if(expireSeconds > 0){
+				byte[] hashKey = SafeEncoder.encode(key);
+				Transaction t = jedis.multi();
+				t.hset(hashKey, SafeEncoder.encode(field), data);
+				t.expire(hashKey, expireSeconds);
+				t.exec();
+			}else{
+				jedis.hset(SafeEncoder.encode(key), SafeEncoder.encode(field), data);
+			}
+			keep(RedisMetrics.Operation.STORE, RedisNearCache.fieldKey(key, field), data, key);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+			written(RedisNearCache.fieldKey(key, field));
+		}
+	}
+	
+	public void deleteHashField(String key, String field){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(RedisNearCache.fieldKey(key, field), null, 0, key, false);
+			written(RedisNearCache.fieldKey(key, field));
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "HDEL", key, field);
+				forget(RedisNearCache.fieldKey(key, field));
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(RedisNearCache.fieldKey(key, field));
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.hdel(key, field);
+			forget(RedisNearCache.fieldKey(key, field));
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.DELETE, true, start);
+			}
+			written(RedisNearCache.fieldKey(key, field));
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return the field names of the hash
+	 */
+	public Set<String> getHashFields(String key){
+		RedisShard shard = getShard(key);
+		Set<String> fields = new HashSet<String>();
+		if(!shard.isAvailable()){
+			for(String fieldKey : getDegradedMembers(key)){
+				fields.add(RedisNearCache.fieldOf(fieldKey));
+			}
+			return fields;
+		}
+		if(isMultiplexed()){
+			try{
+				decodeInto(execute(shard, shard.readFromMaster(key), "HKEYS", key), fields);
+			}catch(Exception e){
+				failed(shard, e);
+				fields.clear();
+			}
+			return fields;
+		}
+		JedisPool pool = shard.readPool(key);
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(pool);
+			fields = jedis.hkeys(key);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.KEYS, pool != shard.slavePool, start);
+			}
+		}
+		return fields;
+	}
+	
+	/**
+	 * Reads all fields of a hash in one HGETALL
+	 * @param key
+	 * @return the raw values by field, empty if the hash does not exist or can't be read
+	 */
+	public Map<String, byte[]> getHashAll(String key){
+		RedisShard shard = getShard(key);
+		Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+		if(!shard.isAvailable()){
+			for(String fieldKey : getDegradedMembers(key)){
+				byte[] value = degradedGet(fieldKey);
+				if(value != null){
+					values.put(RedisNearCache.fieldOf(fieldKey), value);
+				}
+			}
+			return values;
+		}
+		if(isMultiplexed()){
+			try{
+				List<?> reply = (List<?>) execute(shard, shard.readFromMaster(key), "HGETALL", key);
+				for(int i = 0; i + 1 < reply.size(); i += 2){
+					values.put(SafeEncoder.encode((byte[]) reply.get(i)), (byte[]) reply.get(i + 1));
+				}
+				keepFields(RedisMetrics.Operation.GET, key, values, Collections.<String>emptyList());
+			}catch(Exception e){
+				failed(shard, e);
+				values.clear();
+			}
+			return values;
+		}
+		JedisPool pool = shard.readPool(key);
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(pool);
+			for(Map.Entry<byte[], byte[]> entry : jedis.hgetAll(SafeEncoder.encode(key)).entrySet()){
+				values.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+			}
+			keepFields(RedisMetrics.Operation.GET, key, values, Collections.<String>emptyList());
+		}catch(Exception e){
+			failed(shard, e);
+			values.clear();
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.GET, pool != shard.slavePool, start);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Writes and deletes a batch of indexed keys in one MULTI round trip
+	 * @param values objects to store, by key
+	 * @param deletes keys to delete
+	 * @param indexKey index the keys are recorded in
+	 */
+	public void writeBatch(Map<String, Serializable> values, Collection<String> deletes, String indexKey){
+		writeBatch(values, deletes, indexKey, 0);
+	}
+	
+	/**
+	 * Writes and deletes a batch of indexed keys in one MULTI round trip. The written keys
+	 * and the index expire after the given number of seconds. When sharded, the keys have
+	 * to share the hash tag of the index.
+	 * @param values objects to store, by key
+	 * @param deletes keys to delete
+	 * @param indexKey index the keys are recorded in
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void writeBatch(Map<String, Serializable> values, Collection<String> deletes, String indexKey, int expireSeconds){
+		Map<String, byte[]> serialized;
+		try{
+			serialized = serializeAll(values);
+		}catch(Exception e){
+			logJedisError(e);
+			return;
+		}
+		writeBatchBytes(serialized, deletes, indexKey, expireSeconds);
+	}
+	
+	/**
+	 * {@link #writeBatch(Map, Collection, String, int)} with values that are already serialized
+	 * @param serialized bytes to store, by key
+	 * @param deletes keys to delete
+	 * @param indexKey index the keys are recorded in
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void writeBatchBytes(Map<String, byte[]> serialized, Collection<String> deletes, String indexKey, int expireSeconds){
+		RedisShard shard = getShard(indexKey);
+		long start = 0;
+		Jedis jedis = null;
+		try{
+			if(!shard.isAvailable()){
+				for(Map.Entry<String, byte[]> entry : serialized.entrySet()){
+					degradedWrite(entry.getKey(), entry.getValue(), expireSeconds, indexKey, true);
+				}
+				for(String key : deletes){
+					degradedWrite(key, null, 0, indexKey, false);
+				}
+				return;
+			}
+			if(isMultiplexed()){
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				long score = System.currentTimeMillis();
+				for(Map.Entry<String, byte[]> entry : serialized.entrySet()){
+					commands.add(setCommand(entry.getKey(), entry.getValue(), expireSeconds));
+					commands.add(command("ZADD", indexKey, score, entry.getKey()));
+				}
+				for(String key : deletes){
+					commands.add(command("DEL", key));
+					commands.add(command("ZREM", indexKey, key));
+				}
+				if(expireSeconds > 0){
+					commands.add(command("EXPIRE", indexKey, expireSeconds));
+				}
+				executeTransaction(shard, commands);
+				keepAll(serialized, deletes, indexKey);
+				return;
+			}
+			start = System.nanoTime();
+			jedis = borrow(shard.pool);
+			Transaction t = jedis.multi();
+			double score = System.currentTimeMillis();
+			for(Map.Entry<String, byte[]> entry : serialized.entrySet()){
+				if(expireSeconds > 0){
+					t.setex(SafeEncoder.encode(entry.getKey()), expireSeconds, entry.getValue());
+				}else{
+					t.set(SafeEncoder.encode(entry.getKey()), entry.getValue());
+				}
+				t.zadd(indexKey, score, entry.getKey());
+			}
+			for(String key : deletes){
+				t.del(key);
+				t.zrem(indexKey, key);
+			}
+			if(expireSeconds > 0){
+				t.expire(indexKey, expireSeconds);
+			}
+			t.exec();
+			keepAll(serialized, deletes, indexKey);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+			written(serialized.keySet(), deletes, indexKey);
+		}
+	}
+	
+	/**
+	 * Writes and deletes a batch of fields of one hash in one MULTI round trip
+	 * @param key the hash
+	 * @param values objects to store, by field
+	 * @param deleteFields fields to delete
+	 */
+	public void writeHashBatch(String key, Map<String, Serializable> values, Collection<String> deleteFields){
+		writeHashBatch(key, values, deleteFields, 0);
+	}
+	
+	/**
+	 * Writes and deletes a batch of fields of one hash in one MULTI round trip,
+	 * the whole hash expires after the given number of seconds
+	 * @param key the hash
+	 * @param values objects to store, by field
+	 * @param deleteFields fields to delete
+	 * @param expireSeconds 0 for no expiry
+	 */
+	public void writeHashBatch(String key, Map<String, Serializable> values, Collection<String> deleteFields, int expireSeconds){
+		Map<String, byte[]> serialized;
+		try{
+			serialized = serializeAll(values);
+		}catch(Exception e){
+			logJedisError(e);
+			return;
+		}
+		writeHashBytes(key, serialized, deleteFields, null, expireSeconds);
+	}
+	
+	/**
+	 * Writes and deletes a batch of raw fields of one hash in one MULTI round trip, and records the hash
+	 * in the index if there is one. The hash expires after the given number of seconds, the index doesn't.
+	 * @param key the hash
+	 * @param values bytes to store, by field
+	 * @param deleteFields fields to delete
+	 * @param indexKey index the hash is recorded in, null for none
+	 * @param expireSeconds 0 for no expiry
+	 * @return whether it was written, to Redis or to the local store while Redis is unavailable
+	 */
+	public boolean writeHashBytes(String key, Map<String, byte[]> values, Collection<String> deleteFields, String indexKey, int expireSeconds){
+		RedisShard shard = getShard(key);
+		byte[] hashKey = SafeEncoder.encode(key);
+		if(!shard.isAvailable()){
+			for(Map.Entry<String, byte[]> entry : values.entrySet()){
+				degradedWrite(RedisNearCache.fieldKey(key, entry.getKey()), entry.getValue(), expireSeconds, key, true);
+			}
+			for(String field : deleteFields){
+				degradedWrite(RedisNearCache.fieldKey(key, field), null, 0, key, false);
+			}
+			writtenFields(key, values.keySet(), deleteFields);
+			return degradedStore != null;
+		}
+		long start = 0;
+		Jedis jedis = null;
+		try{
+			if(isMultiplexed()){
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				for(Map.Entry<String, byte[]> entry : values.entrySet()){
+					commands.add(command("HSET", hashKey, entry.getKey(), entry.getValue()));
+				}
+				for(String field : deleteFields){
+					commands.add(command("HDEL", hashKey, field));
+				}
+				if(expireSeconds > 0){
+					commands.add(command("EXPIRE", hashKey, expireSeconds));
+				}
+				if(indexKey != null){
+					commands.add(command("ZADD", indexKey, System.currentTimeMillis(), key));
+				}
+				executeTransaction(shard, commands);
+				keepFields(RedisMetrics.Operation.STORE, key, values, deleteFields);
+				return true;
+			}
+			start = System.nanoTime();
+			jedis = borrow(shard.pool);
+			Transaction t = jedis.multi();
+			for(Map.Entry<String, byte[]> entry : values.entrySet()){
+				t.hset(hashKey, SafeEncoder.encode(entry.getKey()), entry.getValue());
+			}
+			for(String field : deleteFields){
+				t.hdel(hashKey, SafeEncoder.encode(field));
+			}
+			if(expireSeconds > 0){
+				t.expire(hashKey, expireSeconds);
+			}
+			if(indexKey != null){
+				t.zadd(indexKey, System.currentTimeMillis(), key);
+			}
+			t.exec();
+			keepFields(RedisMetrics.Operation.STORE, key, values, deleteFields);
+			return true;
+		}catch(Exception e){
+			failed(shard, e);
+			return false;
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+			writtenFields(key, values.keySet(), deleteFields);
+		}
+	}
+	
+	private Map<String, byte[]> serializeAll(Map<String, Serializable> values) throws IOException{
+		Map<String, byte[]> serialized = new LinkedHashMap<String, byte[]>();
+		for(Map.Entry<String, Serializable> entry : values.entrySet()){
+			serialized.put(entry.getKey(), toBytes(entry.getValue()));
+		}
+		return serialized;
+	}
+	
+	/**
+	 * Deletes the key and removes it from the index, in one MULTI round trip
+	 * @param key
+	 * @param indexKey
+	 */
+	public void deleteCacheObject(String key, String indexKey){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			degradedWrite(key, null, 0, indexKey, false);
+			written(key, indexKey);
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				commands.add(command("DEL", key));
+				commands.add(command("ZREM", indexKey, key));
+				executeTransaction(shard, commands);
+				forget(key);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				written(key, indexKey);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			Transaction t = jedis.multi();
+			t.del(key);
+			t.zrem(indexKey, key);
+			t.exec();
+			forget(key);
+		} catch (Exception e) {
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.DELETE, true, start);
+			}
+			written(key, indexKey);
+		}
+	}
+	
+	/**
+	 * Returns the keys recorded in the index. If the index does not exist yet and the
+	 * scan fallback is on, the keys are looked up with SCAN and the index is rebuilt from them,
+	 * see {@link #migrateIndex(String, String)}.
+	 * @param indexKey
+	 * @param keyPrefix prefix of the indexed keys, used to rebuild a missing index
+	 * @return the indexed keys
+	 */
+	public Set<String> getIndexedKeys(String indexKey, String keyPrefix){
+		List<RedisShard> indexShards = getIndexShards(indexKey);
+		if(indexShards.size() == 1){
+			return getIndexedKeys(indexShards.get(0), indexKey, keyPrefix);
+		}
+		Set<String> keys = new HashSet<String>();
+		for(RedisShard shard : indexShards){
+			keys.addAll(getIndexedKeys(shard, indexKey, keyPrefix));
+		}
+		return keys;
+	}
+	
+	private Set<String> getIndexedKeys(RedisShard shard, String indexKey, String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		if(!shard.isAvailable()){
+			return getDegradedMembers(indexKey);
+		}
+		if(isMultiplexed()){
+			try{
+				decodeInto(execute(shard, shard.readFromMaster(indexKey), "ZRANGE", indexKey, 0, -1), keys);
+			}catch(Exception e){
+				failed(shard, e);
+				keys.clear();
+			}
+		}else{
+			JedisPool pool = shard.readPool(indexKey);
+			long start = System.nanoTime();
+			Jedis jedis = null;
+			try{
+				jedis = borrow(pool);
+				keys = jedis.zrange(indexKey, 0, -1);
+			}catch(Exception e){
+				failed(shard, e);
+			}finally{
+				if(jedis != null){
+					pool.returnResource(jedis);
+					metrics.operation(RedisMetrics.Operation.KEYS, pool != shard.slavePool, start);
+				}
+			}
+		}
+		//the migration walks the keyspace with SCAN, which stays on the pool
+		if(keys.isEmpty() && scanFallback){
+			keys = migrateIndex(shard, indexKey, keyPrefix);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Rebuilds an index that doesn't exist from the keys that start with the prefix, found with SCAN.
+	 * This walks the whole keyspace, so it is a one time step for keys written before the indexes
+	 * were introduced, to run once per index when upgrading.
+	 * @param indexKey
+	 * @param keyPrefix prefix of the indexed keys
+	 * @return the indexed keys, which are left as they are if the index exists
+	 */
+	public Set<String> migrateIndex(String indexKey, String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		for(RedisShard shard : getIndexShards(indexKey)){
+			keys.addAll(migrateIndex(shard, indexKey, keyPrefix));
+		}
+		return keys;
+	}
+	
+	private Set<String> migrateIndex(RedisShard shard, String indexKey, String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		if(!shard.isAvailable()){
+			return keys;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			//on the master, the replica may not have the index yet
+			jedis = borrow(shard.pool);
+			if(jedis.exists(indexKey)){
+				return jedis.zrange(indexKey, 0, -1);
+			}
+			keys = scanKeys(jedis, keyPrefix);
+			keys.remove(indexKey);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.KEYS, true, start);
+			}
+		}
+		rebuildIndex(shard, indexKey, keys);
+		return keys;
+	}
+	
+	/**
+	 * @param indexKey
+	 * @return the number of keys recorded in the index
+	 */
+	public long getIndexSize(String indexKey){
+		long size = 0;
+		for(RedisShard shard : getIndexShards(indexKey)){
+			size += getIndexSize(shard, indexKey);
+		}
+		return size;
+	}
+	
+	private long getIndexSize(RedisShard shard, String indexKey){
+		if(!shard.isAvailable()){
+			return getDegradedMembers(indexKey).size();
+		}
+		if(isMultiplexed()){
+			try{
+				return (Long) execute(shard, shard.readFromMaster(indexKey), "ZCARD", indexKey);
+			}catch(Exception e){
+				failed(shard, e);
+				return 0;
+			}
+		}
+		JedisPool pool = shard.readPool(indexKey);
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(pool);
+			return jedis.zcard(indexKey);
+		}catch(Exception e){
+			failed(shard, e);
+			return 0;
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.KEYS, pool != shard.slavePool, start);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the score of a member of a sorted set, such as the time it expires at.
+	 * Skipped while Redis is unavailable.
+	 * @param setKey
+	 * @param member
+	 * @param score
+	 */
+	public void setScore(String setKey, String member, long score){
+		RedisShard shard = getShard(setKey);
+		if(!shard.isAvailable()){
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "ZADD", setKey, score, member);
+			}catch(Exception e){
+				failed(shard, e);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.zadd(setKey, score, member);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the scores of many members of a sorted set, pipelined in chunks of {@link #BULK_CHUNK_SIZE}.
+	 * Skipped while Redis is unavailable.
+	 * @param setKey
+	 * @param scores by member
+	 */
+	public void setScores(String setKey, Map<String, Long> scores){
+		RedisShard shard = getShard(setKey);
+		if(scores.isEmpty() || !shard.isAvailable()){
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				List<byte[][]> commands = new ArrayList<byte[][]>();
+				for(Map.Entry<String, Long> entry : scores.entrySet()){
+					commands.add(command("ZADD", setKey, entry.getValue(), entry.getKey()));
+					if(commands.size() == BULK_CHUNK_SIZE){
+						executeBatch(shard, true, commands);
+						commands.clear();
+					}
+				}
+				executeBatch(shard, true, commands);
+			}catch(Exception e){
+				failed(shard, e);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			Pipeline p = jedis.pipelined();
+			int count = 0;
+			for(Map.Entry<String, Long> entry : scores.entrySet()){
+				p.zadd(setKey, entry.getValue(), entry.getKey());
+				if(++count % BULK_CHUNK_SIZE == 0){
+					p.sync();
+				}
+			}
+			p.sync();
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Removes a member of a sorted set. Skipped while Redis is unavailable.
+	 * @param setKey
+	 * @param member
+	 */
+	public void removeMember(String setKey, String member){
+		removeMember(getShard(setKey), setKey, member);
+	}
+	
+	/**
+	 * Removes a key from its index without deleting the key, for keys that are known to be gone.
+	 * Skipped while Redis is unavailable.
+	 * @param key
+	 * @param indexKey
+	 */
+	public void removeIndexed(String key, String indexKey){
+		List<RedisShard> indexShards = getIndexShards(indexKey);
+		//a split index records each key in the part on the key's shard
+		removeMember(indexShards.size() == 1 ? indexShards.get(0) : getShard(key), indexKey, key);
+	}
+	
+	private void removeMember(RedisShard shard, String setKey, String member){
+		if(!shard.isAvailable()){
+			return;
+		}
+		if(isMultiplexed()){
+			try{
+				execute(shard, true, "ZREM", setKey, member);
+			}catch(Exception e){
+				failed(shard, e);
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			jedis.zrem(setKey, member);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.DELETE, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the members of a sorted set with a score of at most the given score, from the master
+	 * @param setKey
+	 * @param maxScore
+	 * @return the members, lowest score first. Empty while Redis is unavailable.
+	 */
+	public Set<String> getMembersUpTo(String setKey, long maxScore){
+		RedisShard shard = getShard(setKey);
+		Set<String> members = new LinkedHashSet<String>();
+		if(!shard.isAvailable()){
+			return members;
+		}
+		if(isMultiplexed()){
+			try{
+				decodeInto(execute(shard, true, "ZRANGEBYSCORE", setKey, "-inf", maxScore), members);
+			}catch(Exception e){
+				failed(shard, e);
+				members.clear();
+			}
+			return members;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			members.addAll(jedis.zrangeByScore(setKey, "-inf", String.valueOf(maxScore)));
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.KEYS, true, start);
+			}
+		}
+		return members;
+	}
+	
+	/**
+	 * Takes a lease, unless someone else holds it, with SET NX PX. The lease isn't released,
+	 * it expires after the given time, so it also tells the other owners the work was done recently.
+	 * @param key
+	 * @param owner stored as the value of the key, to tell who holds it
+	 * @param millis how long the lease lasts
+	 * @return whether the lease was taken, false while Redis is unavailable
+	 */
+	public boolean acquireLease(String key, String owner, long millis){
+		RedisShard shard = getShard(key);
+		if(!shard.isAvailable()){
+			return false;
+		}
+		if(isMultiplexed()){
+			try{
+				return "OK".equals(execute(shard, true, "SET", key, owner, "NX", "PX", millis));
+			}catch(Exception e){
+				failed(shard, e);
+				return false;
+			}
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			return "OK".equals(jedis.set(key, owner, "NX", "PX", millis));
+		}catch(Exception e){
+			failed(shard, e);
+			return false;
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+		}
+	}
+	
+	private void rebuildIndex(RedisShard shard, String indexKey, Set<String> keys){
+		if(keys.isEmpty() || !shard.isAvailable()){
+			return;
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			Pipeline p = jedis.pipelined();
+			double score = System.currentTimeMillis();
+			int count = 0;
+			for(String key : keys){
+				p.zadd(indexKey, score, key);
+				if(++count % BULK_CHUNK_SIZE == 0){
+					p.sync();
+				}
+			}
+			p.sync();
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.STORE, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Looks up all keys that start with the prefix. This uses SCAN rather than KEYS so Redis
+	 * is not blocked, but it still walks the whole keyspace: use an index for anything on a hot path.
+	 * @param keyPrefix
+	 * @return the matching keys
+	 */
+	public Set<String> getCachedKeys(String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		for(RedisShard shard : shards){
+			keys.addAll(getCachedKeys(shard, keyPrefix));
+		}
+		return keys;
+	}
+	
+	private Set<String> getCachedKeys(RedisShard shard, String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		if(!shard.isAvailable()){
+			RedisDegradedStore store = degradedStore;
+			return store == null ? keys : store.getKeys(keyPrefix);
+		}
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.slavePool);
+			keys = scanKeys(jedis, keyPrefix);
+		}catch(Exception e){
+			failed(shard, e);
+		}finally{
+			if(jedis != null){
+				shard.slavePool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.KEYS, false, start);
+			}
+		}
+		return keys;
+	}
+	
+	
+	/**
+	 * Asynchronous {@link #getBytes(String)}
+	 * @param key
+	 * @return completes with the stored bytes, or null
+	 */
+	public CompletableFuture<byte[]> getBytesAsync(final String key){
+		RedisNearCache near = getNearCache(key);
+		if(near != null){
+			byte[] data = near.get(key);
+			if(data != null){
+				return CompletableFuture.completedFuture(data);
+			}
+		}
+		if(isMultiplexed() && getShard(key).isAvailable()){
+			//no thread needs to wait for the reply
+			return sendAsync(getShard(key), command("GET", key), near, key);
+		}
+		return CompletableFuture.supplyAsync(new Supplier<byte[]>(){
+			@Override
+			public byte[] get(){
+				return getBytes(key);
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #getHashBytes(String, String)}
+	 * @param key
+	 * @param field
+	 * @return completes with the stored bytes, or null
+	 */
+	public CompletableFuture<byte[]> getHashBytesAsync(final String key, final String field){
+		RedisNearCache near = getNearCache(key);
+		String fieldKey = RedisNearCache.fieldKey(key, field);
+		if(near != null){
+			byte[] data = near.get(fieldKey);
+			if(data != null){
+				return CompletableFuture.completedFuture(data);
+			}
+		}
+		if(isMultiplexed() && getShard(key).isAvailable()){
+			return sendAsync(getShard(key), command("HGET", key, field), near, fieldKey);
+		}
+		return CompletableFuture.supplyAsync(new Supplier<byte[]>(){
+			@Override
+			public byte[] get(){
+				return getHashBytes(key, field);
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #getCacheObject(String)}, the object is deserialized off the calling thread too
+	 * @param key
+	 * @return completes with the object, or null
+	 */
+	public CompletableFuture<Object> getCacheObjectAsync(final String key){
+		return CompletableFuture.supplyAsync(new Supplier<Object>(){
+			@Override
+			public Object get(){
+				return getCacheObject(key);
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #getString(String)}
+	 * @param key
+	 * @return completes with the value, or null
+	 */
+	public CompletableFuture<String> getStringAsync(final String key){
+		return CompletableFuture.supplyAsync(new Supplier<String>(){
+			@Override
+			public String get(){
+				return getString(key);
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #multiGet(List)}
+	 * @param keys
+	 * @return completes with the stored bytes in the order of the keys
+	 */
+	public CompletableFuture<List<byte[]>> multiGetAsync(final List<String> keys){
+		return CompletableFuture.supplyAsync(new Supplier<List<byte[]>>(){
+			@Override
+			public List<byte[]> get(){
+				return multiGet(keys);
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #storeBytes(String, byte[], String, int)}
+	 * @return completes once the bytes are stored
+	 */
+	public CompletableFuture<Void> storeBytesAsync(final String key, final byte[] data, final String indexKey, final int expireSeconds){
+		return CompletableFuture.supplyAsync(new Supplier<Void>(){
+			@Override
+			public Void get(){
+				storeBytes(key, data, indexKey, expireSeconds);
+				return null;
+			}
+		}, asyncExecutor);
+	}
+	
+	/**
+	 * Asynchronous {@link #evalScript(String, List, List)}
+	 * @return completes with the script's reply, or null
+	 */
+	public CompletableFuture<Object> evalScriptAsync(final String script, final List<String> keys, final List<String> args){
+		return CompletableFuture.supplyAsync(new Supplier<Object>(){
+			@Override
+			public Object get(){
+				return evalScript(script, keys, args);
+			}
+		}, asyncExecutor);
+	}
+	
+	public Executor getAsyncExecutor(){
+		return asyncExecutor;
+	}
+	
+	/**
+	 * Sets the executor the async operations run on, call before {@link #init()}. The tasks only
+	 * block on Redis I/O and hold no locks while doing so, so a virtual thread per task executor
+	 * works well. Keep in mind that every running task holds a pooled connection, unless the
+	 * backend is {@link Backend#MULTIPLEXED}.
+	 * @param asyncExecutor
+	 */
+	public void setAsyncExecutor(Executor asyncExecutor){
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	/**
+	 * Daemon threads for the default async executor
+	 */
+	private static final class AsyncThreadFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, "RedisCache-async-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+	private boolean isMultiplexed(){
+		return backend == Backend.MULTIPLEXED && shards != null && shards.get(0).isMultiplexed();
+	}
+	
+	/**
+	 * @param key
+	 * @return the shard the key lives on
+	 */
+	public RedisShard getShard(String key){
+		return shards.size() == 1 ? shards.get(0) : locator.getShard(key);
+	}
+	
+	/**
+	 * @param keys keys that live on the same shard, like the keys of a script
+	 * @return the shard of the first key
+	 */
+	private RedisShard getShard(List<String> keys){
+		return keys.isEmpty() ? shards.get(0) : getShard(keys.get(0));
+	}
+	
+	/**
+	 * An index without a hash tag is shared by keys on every shard. Each shard keeps the
+	 * part of the index with its own keys, written in the same transaction as the key.
+	 * @param indexKey
+	 * @return the shards that have a part of the index
+	 */
+	private List<RedisShard> getIndexShards(String indexKey){
+		if(shards.size() == 1 || RedisShardLocator.hasHashTag(indexKey)){
+			return Collections.singletonList(getShard(indexKey));
+		}
+		return shards;
+	}
+	
+	private Map<RedisShard, List<String>> groupByShard(Collection<String> keys){
+		Map<RedisShard, List<String>> byShard = new LinkedHashMap<RedisShard, List<String>>();
+		for(String key : keys){
+			RedisShard shard = getShard(key);
+			List<String> shardKeys = byShard.get(shard);
+			if(shardKeys == null){
+				shardKeys = new ArrayList<String>();
+				byShard.put(shard, shardKeys);
+			}
+			shardKeys.add(key);
+		}
+		return byShard;
+	}
+	
+	/**
+	 * Sends one command over the multiplexed backend and waits for the reply
+	 * @param master whether it goes to the master or the slave
+	 * @param args strings, numbers or bytes
+	 * @return the reply
+	 */
+	private Object execute(RedisShard shard, boolean master, Object... args) throws Exception{
+		return execute(shard, master, command(args));
+	}
+	
+	private Object execute(RedisShard shard, boolean master, byte[][] command) throws Exception{
+		long start = System.nanoTime();
+		try{
+			return await(shard.connection(master).send(command));
+		}finally{
+			metrics.operation(operationOf(command), master, start);
+		}
+	}
+	
+	/**
+	 * Sends the commands back to back over the multiplexed backend, without waiting in between
+	 * @return the replies in order
+	 */
+	private List<Object> executeBatch(RedisShard shard, boolean master, List<byte[][]> commands) throws Exception{
+		if(commands.isEmpty()){
+			return Collections.emptyList();
+		}
+		long start = System.nanoTime();
+		try{
+			return await(shard.connection(master).sendBatch(commands));
+		}finally{
+			//a batch is counted as one operation, of the kind of its first command
+			metrics.operation(operationOf(commands.get(commands.size() > 1 && SafeEncoder.encode(commands.get(0)[0]).equals("MULTI") ? 1 : 0)),
+				master, start);
+		}
+	}
+	
+	/**
+	 * @param command
+	 * @return the kind of operation the command is, for the metrics
+	 */
+	private static RedisMetrics.Operation operationOf(byte[][] command){
+		String name = SafeEncoder.encode(command[0]);
+		if(name.equals("GET") || name.equals("MGET") || name.equals("HGET") || name.equals("HGETALL")){
+			return RedisMetrics.Operation.GET;
+		}else if(name.equals("DEL") || name.equals("HDEL") || name.equals("ZREM")){
+			return RedisMetrics.Operation.DELETE;
+		}else if(name.equals("EXPIRE")){
+			return RedisMetrics.Operation.EXPIRE;
+		}else if(name.startsWith("EVAL") || name.equals("SCRIPT")){
+			return RedisMetrics.Operation.SCRIPT;
+		}else if(name.equals("PUBLISH")){
+			return RedisMetrics.Operation.PUBLISH;
+		}else if(name.equals("SCAN") || name.equals("ZRANGE") || name.equals("ZRANGEBYSCORE") || name.equals("ZCARD")
+				|| name.equals("HKEYS")){
+			return RedisMetrics.Operation.KEYS;
+		}
+		return RedisMetrics.Operation.STORE;
+	}
+	
+	/**
+	 * Runs the commands in a MULTI/EXEC on the master, over the multiplexed backend
+	 * @return the reply of EXEC
+	 */
+	private Object executeTransaction(RedisShard shard, List<byte[][]> commands) throws Exception{
+		List<byte[][]> transaction = new ArrayList<byte[][]>(commands.size() + 2);
+		transaction.add(command("MULTI"));
+		transaction.addAll(commands);
+		transaction.add(command("EXEC"));
+		List<Object> replies = executeBatch(shard, true, transaction);
+		Object exec = replies.get(replies.size() - 1);
+		if(exec instanceof JedisDataException){
+			//like EXECABORT after a command was refused
+			throw (JedisDataException) exec;
+		}
+		return exec;
+	}
+	
+	private Object evalMultiplexed(final RedisShard shard, String script, final byte[][] keys, final byte[][] args) throws Exception{
+		return evalSha(script, new ScriptRunner(){
+			@Override
+			public Object evalSha(String sha) throws Exception{
+				return execute(shard, true, command("EVALSHA", sha, keys.length, keys, args));
+			}
+			
+			@Override
+			public String load(String script) throws Exception{
+				return SafeEncoder.encode((byte[]) execute(shard, true, "SCRIPT", "LOAD", script));
+			}
+		});
+	}
+	
+	private <T> T await(CompletableFuture<T> reply) throws Exception{
+		try{
+			return reply.get(commandTimeout, TimeUnit.MILLISECONDS);
+		}catch(ExecutionException e){
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+	
+	/**
+	 * Sends a read over the multiplexed backend without waiting for the reply
+	 * @param shard
+	 * @param command
+	 * @param near the near cache to put the reply in, or null
+	 * @param nearKey the key the reply is near cached under
+	 * @return completes with the reply, or null if it failed
+	 */
+	private CompletableFuture<byte[]> sendAsync(final RedisShard shard, byte[][] command, final RedisNearCache near, final String nearKey){
+		final long stamp = near == null ? 0 : near.stamp();
+		final long start = System.nanoTime();
+		final boolean master = shard.readFromMaster(SafeEncoder.encode(command[1]));
+		return shard.connection(master).send(command).handle(new BiFunction<Object, Throwable, byte[]>(){
+			@Override
+			public byte[] apply(Object reply, Throwable t){
+				metrics.operation(RedisMetrics.Operation.GET, master, start);
+				if(t != null){
+					failed(shard, t instanceof Exception ? (Exception) t : new Exception(t));
+					return null;
+				}
+				String field = RedisNearCache.fieldOf(nearKey);
+				keep(RedisMetrics.Operation.GET, nearKey, (byte[]) reply, field == null ? null : RedisNearCache.keyOf(nearKey));
+				if(near != null){
+					near.put(nearKey, (byte[]) reply, stamp);
+				}
+				return (byte[]) reply;
+			}
+		});
+	}
+	
+	/**
+	 * Builds a command for the multiplexed backend
+	 * @param args strings, numbers, bytes or arrays of bytes, which are spread out
+	 * @return the encoded arguments
+	 */
+	private static byte[][] command(Object... args){
+		List<byte[]> command = new ArrayList<byte[]>(args.length);
+		for(Object arg : args){
+			if(arg instanceof byte[]){
+				command.add((byte[]) arg);
+			}else if(arg instanceof byte[][]){
+				Collections.addAll(command, (byte[][]) arg);
+			}else{
+				command.add(SafeEncoder.encode(String.valueOf(arg)));
+			}
+		}
+		return command.toArray(new byte[command.size()][]);
+	}
+	
+	private static byte[][] setCommand(String key, byte[] data, int expireSeconds){
+		if(expireSeconds > 0){
+			return command("SETEX", key, expireSeconds, data);
+		}
+		return command("SET", key, data);
+	}
+	
+	/**
+	 * Adds the bulk strings of an array reply to the collection, as strings
+	 */
+	private static void decodeInto(Object reply, Collection<String> into){
+		if(reply instanceof List){
+			for(Object o : (List<?>) reply){
+				into.add(SafeEncoder.encode((byte[]) o));
+			}
+		}
+	}
+	
+	private static Object decodeStrings(Object reply){
+		if(reply instanceof byte[]){
+			return SafeEncoder.encode((byte[]) reply);
+		}
+		if(reply instanceof List){
+			List<Object> decoded = new ArrayList<Object>();
+			for(Object o : (List<?>) reply){
+				decoded.add(decodeStrings(o));
+			}
+			return decoded;
+		}
+		return reply;
+	}
+	
+	/**
+	 * @return whether keys are spread over more than one shard
+	 */
+	public boolean isSharded(){
+		return shards != null && shards.size() > 1;
+	}
+	
+	/**
+	 * Wraps an id in a hash tag when sharded, so every key built with the tagged id lands on the same shard
+	 * and can be written in one transaction. When not sharded the id is left as is, so the keys don't change.
+	 * @param id
+	 * @return the tagged id, <code>{id}</code>
+	 */
+	public String tagged(String id){
+		return isSharded() ? "{" + id + "}" : id;
+	}
+	
+	public List<RedisShard> getShards(){
+		return shards;
+	}
+	
+	public String getHosts(){
+		return hosts;
+	}
+	
+	/**
+	 * Sets the shards, call before {@link #init()}. Defaults to the redis.hosts system property.
+	 * @param hosts master[:port][/slave[:port]] of every shard, comma separated
+	 */
+	public void setHosts(String hosts){
+		this.hosts = hosts;
+	}
+	
+	public RedisShardLocator.Mode getShardMode(){
+		return shardMode;
+	}
+	
+	/**
+	 * Sets how keys are spread over the shards, call before {@link #init()}. Defaults to the
+	 * redis.shardMode system property, or {@link RedisShardLocator.Mode#CONSISTENT_HASH}.
+	 * @param shardMode
+	 */
+	public void setShardMode(RedisShardLocator.Mode shardMode){
+		this.shardMode = shardMode;
+	}
+	
+	public Backend getBackend(){
+		return backend;
+	}
+	
+	/**
+	 * Sets how commands get to Redis, call before {@link #init()}. Defaults to the
+	 * redis.backend system property, or {@link Backend#POOL}.
+	 * @param backend
+	 */
+	public void setBackend(Backend backend){
+		this.backend = backend;
+	}
+	
+	public int getMultiplexedConnections(){
+		return multiplexedConnections;
+	}
+	
+	/**
+	 * Sets the number of connections per node of the multiplexed backend, call before {@link #init()}
+	 * @param multiplexedConnections
+	 */
+	public void setMultiplexedConnections(int multiplexedConnections){
+		this.multiplexedConnections = multiplexedConnections;
+	}
+	
+	public boolean isReadYourWrites(){
+		return readYourWrites;
+	}
+	
+	/**
+	 * Whether a key written through this cache is read from the master until the replica has the write,
+	 * call before {@link #init()}. Only applies when the slave host differs from the master host.
+	 * @param readYourWrites
+	 */
+	public void setReadYourWrites(boolean readYourWrites){
+		this.readYourWrites = readYourWrites;
+	}
+	
+	public long getReplicationCheckInterval(){
+		return replicationCheckInterval;
+	}
+	
+	/**
+	 * Sets how often the replication offsets are compared, in milliseconds, call before {@link #init()}.
+	 * Recently written keys are read from the master for at least this long.
+	 * @param replicationCheckInterval
+	 */
+	public void setReplicationCheckInterval(long replicationCheckInterval){
+		this.replicationCheckInterval = replicationCheckInterval;
+	}
+	
+	public int getFailureThreshold(){
+		return failureThreshold;
+	}
+	
+	/**
+	 * Stops calls to a shard after this many connection failures within the failure window, until
+	 * it answers a ping again. Calls to a stopped shard are served by the local degraded store.
+	 * 0 to never stop calls. Takes effect on init.
+	 * @param failureThreshold
+	 */
+	public void setFailureThreshold(int failureThreshold){
+		this.failureThreshold = failureThreshold;
+	}
+	
+	public long getFailureWindow(){
+		return failureWindow;
+	}
+	
+	/**
+	 * @param failureWindow in milliseconds, takes effect on init
+	 */
+	public void setFailureWindow(long failureWindow){
+		this.failureWindow = failureWindow;
+	}
+	
+	public long getProbeInterval(){
+		return probeInterval;
+	}
+	
+	/**
+	 * @param probeInterval how often a stopped shard is pinged, in milliseconds. Takes effect on init.
+	 */
+	public void setProbeInterval(long probeInterval){
+		this.probeInterval = probeInterval;
+	}
+	
+	public long getDegradedStoreSize(){
+		return degradedStoreSize;
+	}
+	
+	/**
+	 * The most bytes the local degraded store keeps, 0 (the default) to fail reads and drop writes while a
+	 * shard is stopped. With a store every value read or written is also copied into it, and writes are
+	 * published for the stores of the other nodes. Takes effect on init.
+	 * @param degradedStoreSize
+	 */
+	public void setDegradedStoreSize(long degradedStoreSize){
+		this.degradedStoreSize = degradedStoreSize;
+	}
+	
+	/**
+	 * @return the local degraded store, or null if there is none
+	 */
+	public RedisDegradedStore getDegradedStore(){
+		return degradedStore;
+	}
+	
+	public int getCommandTimeout(){
+		return commandTimeout;
+	}
+	
+	/**
+	 * Sets how long to wait for a reply on the multiplexed backend, in milliseconds
+	 * @param commandTimeout
+	 */
+	public void setCommandTimeout(int commandTimeout){
+		this.commandTimeout = commandTimeout;
+	}
+	
+	/**
+	 * Keeps values read with {@link #getBytes(String)} and {@link #getHashBytes(String, String)} in local
+	 * memory, for keys with one of the prefixes. Writes through this cache invalidate the value on every node
+	 * that has it, over Redis pub/sub. Only use it for keys that are only ever changed through a RedisCache
+	 * with the near cache on, other clients don't send invalidations. Scripts run through
+	 * {@link #evalScript(String, List, List)} invalidate their KEYS. Call after {@link #init()}.
+	 * @param maxBytes the most bytes of values kept locally
+	 * @param maxAgeSeconds how long a value is used before it is read from Redis again
+	 * @param keyPrefixes
+	 */
+	public synchronized void enableNearCache(long maxBytes, int maxAgeSeconds, String... keyPrefixes){
+		nearCachePrefixes = keyPrefixes;
+		nearCache = new RedisNearCache(maxBytes, maxAgeSeconds);
+		startInvalidator();
+	}
+	
+	/**
+	 * (Re)starts listening for the invalidations of other nodes, and publishing ours
+	 */
+	private synchronized void startInvalidator(){
+		if(invalidator != null){
+			invalidator.stop();
+			publisher.stop();
+		}
+		invalidator = new Invalidator();
+		Thread thread = new Thread(invalidator, "RedisCache-invalidator");
+		thread.setDaemon(true);
+		thread.start();
+		publisher = new Publisher();
+		thread = new Thread(publisher, "RedisCache-publisher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * @return the near cache, or null if it isn't enabled
+	 */
+	public RedisNearCache getNearCache(){
+		return nearCache;
+	}
+	
+	/**
+	 * @param key
+	 * @return the near cache if the key is near cached, otherwise null
+	 */
+	private RedisNearCache getNearCache(String key){
+		RedisNearCache near = nearCache;
+		if(near != null){
+			for(String prefix : nearCachePrefixes){
+				if(key.startsWith(prefix)){
+					return near;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private void written(String... keys){
+		written(Arrays.asList(keys));
+	}
+	
+	private void written(Collection<String> keys, Collection<String> moreKeys, String indexKey){
+		List<String> all = new ArrayList<String>(keys);
+		all.addAll(moreKeys);
+		all.add(indexKey);
+		written(all);
+	}
+	
+	private void writtenFields(String key, Collection<String> fields, Collection<String> moreFields){
+		List<String> all = new ArrayList<String>();
+		//the hash itself, for the read routing
+		all.add(key);
+		for(String field : fields){
+			all.add(RedisNearCache.fieldKey(key, field));
+		}
+		for(String field : moreFields){
+			all.add(RedisNearCache.fieldKey(key, field));
+		}
+		written(all);
+	}
+	
+	/**
+	 * Called after a write. Records the keys for the read routing, drops them from the local near cache
+	 * and publishes them for the near caches and degraded stores of the other nodes. Hash fields are passed
+	 * in as {@link RedisNearCache#fieldKey(String, String)}.
+	 * @param keys
+	 */
+	private void written(Collection<String> keys){
+		if(readYourWrites){
+			List<String> routingKeys = new ArrayList<String>(keys.size());
+			for(String key : keys){
+				//hash fields are routed by their hash
+				routingKeys.add(RedisNearCache.keyOf(key));
+			}
+			for(Map.Entry<RedisShard, List<String>> entry : groupByShard(routingKeys).entrySet()){
+				entry.getKey().written(entry.getValue());
+			}
+		}
+		boolean degraded = degradedStore != null;
+		if(nearCache == null && !degraded){
+			return;
+		}
+		int dropped = 0;
+		for(String key : keys){
+			RedisNearCache near = getNearCache(key);
+			if(near != null){
+				near.invalidate(key);
+			}
+			//every key is in the degraded stores of the others, the near caches only keep some
+			if((near != null || degraded) && !pendingInvalidations.offer(key)){
+				dropped++;
+			}
+		}
+		if(dropped > 0){
+			log.warn("Dropped " + dropped + " invalidations, the publisher is behind");
+		}
+	}
+	
+	/**
+	 * Publishes the keys written by this node in batches, off the request threads. Nothing is sent while
+	 * no other node listens. Since a node that starts listening only shows up with the next check, it
+	 * drops its near cache and clean copies again after two checks, see {@link Invalidator#onSubscribe}.
+	 */
+	private final class Publisher implements Runnable {
+		//keys per message
+		private static final int BATCH_SIZE = 1000;
+		private volatile boolean stopped = false;
+		private volatile Thread thread;
+		private long listenersCheckedAt;
+		private boolean listeners = true;
+		
+		@Override
+		public void run(){
+			thread = Thread.currentThread();
+			List<String> keys = new ArrayList<String>();
+			while(!stopped){
+				try{
+					keys.add(pendingInvalidations.take());
+				}catch(InterruptedException e){
+					return;
+				}
+				pendingInvalidations.drainTo(keys, BATCH_SIZE - 1);
+				try{
+					if(hasListeners()){
+						publish(keys);
+					}
+				}catch(Exception e){
+					failed(shards.get(0), e);
+				}
+				keys.clear();
+			}
+		}
+		
+		void stop(){
+			stopped = true;
+			Thread t = thread;
+			if(t != null){
+				t.interrupt();
+			}
+		}
+		
+		/**
+		 * @return whether another node is subscribed to the invalidations, checked at most once per interval
+		 */
+		private boolean hasListeners() throws Exception{
+			long now = System.currentTimeMillis();
+			if(now - listenersCheckedAt < LISTENER_CHECK_INTERVAL){
+				return listeners;
+			}
+			RedisShard shard = shards.get(0);
+			if(!shard.isAvailable()){
+				return false;
+			}
+			long count;
+			if(isMultiplexed()){
+				List<?> reply = (List<?>) execute(shard, true, command("PUBSUB", "NUMSUB", NEAR_CACHE_CHANNEL));
+				count = (Long) reply.get(1);
+			}else{
+				Jedis jedis = borrow(shard.pool);
+				try{
+					count = Long.parseLong(jedis.pubsubNumSub(NEAR_CACHE_CHANNEL).get(NEAR_CACHE_CHANNEL));
+				}finally{
+					shard.pool.returnResource(jedis);
+				}
+			}
+			//this node's own invalidator is one of them
+			listeners = count > 1;
+			listenersCheckedAt = now;
+			return listeners;
+		}
+		
+		private void publish(List<String> keys) throws Exception{
+			//invalidations all go through the first shard, the other nodes drop their near caches when it is back
+			RedisShard shard = shards.get(0);
+			if(!shard.isAvailable()){
+				return;
+			}
+			StringBuilder message = new StringBuilder(nodeId);
+			for(String key : keys){
+				message.append('\n').append(key);
+			}
+			if(isMultiplexed()){
+				execute(shard, true, command("PUBLISH", NEAR_CACHE_CHANNEL, message.toString()));
+				return;
+			}
+			long start = System.nanoTime();
+			Jedis jedis = borrow(shard.pool);
+			try{
+				jedis.publish(NEAR_CACHE_CHANNEL, message.toString());
+			}finally{
+				shard.pool.returnResource(jedis);
+				metrics.operation(RedisMetrics.Operation.PUBLISH, true, start);
+			}
+		}
+	}
+	
+	/**
+	 * Listens for the invalidations of other nodes on its own connection, for the near cache and the
+	 * clean copies of the degraded store. Whenever it (re)subscribes both are dropped, since
+	 * invalidations may have been missed. The near cache is also dropped when the connection is lost,
+	 * the degraded store is kept for the outage.
+	 */
+	private final class Invalidator extends JedisPubSub implements Runnable {
+		private volatile boolean stopped = false;
+		private volatile Jedis connection;
+		
+		@Override
+		public void run(){
+			while(!stopped){
+				Jedis jedis = null;
+				try{
+					jedis = new Jedis(shards.get(0).getHost(), shards.get(0).getPort());
+					connection = jedis;
+					if(!stopped){
+						jedis.subscribe(this, NEAR_CACHE_CHANNEL);
+					}
+				}catch(Exception e){
+					if(!stopped){
+						logJedisError(e);
+					}
+				}finally{
+					RedisNearCache near = nearCache;
+					if(near != null){
+						near.invalidateAll();
+					}
+					if(jedis != null){
+						try{
+							jedis.disconnect();
+						}catch(Exception e){
+							//reconnecting anyway
+						}
+					}
+				}
+				try{
+					Thread.sleep(1000);
+				}catch(InterruptedException e){
+					return;
+				}
+			}
+		}
+		
+		void stop(){
+			stopped = true;
+			Jedis jedis = connection;
+			if(jedis != null){
+				try{
+					//ends the blocking subscribe
+					jedis.disconnect();
+				}catch(Exception e){
+					//stopping anyway
+				}
+			}
+		}
+		
+		@Override
+		public void onMessage(String channel, String message){
+			int end = message.indexOf('\n');
+			if(end < 0 || message.substring(0, end).equals(nodeId)){
+				return;
+			}
+			RedisNearCache near = nearCache;
+			RedisDegradedStore store = degradedStore;
+			for(String key : message.substring(end + 1).split("\n")){
+				if(near != null){
+					near.invalidate(key);
+				}
+				if(store != null){
+					store.invalidate(key);
+				}
+			}
+		}
+		
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels){
+			clearCopies();
+			//publishers that saw no listener until now may have skipped some writes meanwhile
+			Thread later = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						Thread.sleep(2 * LISTENER_CHECK_INTERVAL);
+					}catch(InterruptedException e){
+						return;
+					}
+					if(!stopped){
+						clearCopies();
+					}
+				}
+			}, "RedisCache-invalidator-clear");
+			later.setDaemon(true);
+			later.start();
+		}
+		
+		private void clearCopies(){
+			RedisNearCache near = nearCache;
+			if(near != null){
+				near.invalidateAll();
+			}
+			RedisDegradedStore store = degradedStore;
+			if(store != null){
+				store.clearClean();
+			}
+		}
+		
+		@Override
+		public void onPMessage(String pattern, String channel, String message){
+		}
+		
+		@Override
+		public void onUnsubscribe(String channel, int subscribedChannels){
+		}
+		
+		@Override
+		public void onPUnsubscribe(String pattern, int subscribedChannels){
+		}
+		
+		@Override
+		public void onPSubscribe(String pattern, int subscribedChannels){
+		}
+	}
+	
+	private static Set<String> scanKeys(Jedis jedis, String keyPrefix){
+		Set<String> keys = new HashSet<String>();
+		ScanParams params = new ScanParams().match(keyPrefix + "*").count(SCAN_COUNT);
+		String cursor = "0";
+		do{
+			ScanResult<String> result = jedis.scan(cursor, params);
+			keys.addAll(result.getResult());
+			cursor = result.getStringCursor();
+		}while(!"0".equals(cursor));
+		return keys;
+	}
+	
+	public boolean isScanFallback(){
+		return scanFallback;
+	}
+	
+	/**
+	 * Whether an empty index is looked for with {@link #migrateIndex(String, String)} on every read.
+	 * Off by default, as every read of an empty or missing index walks the keyspace then. Only turn
+	 * it on while keys written by versions without indexes may still be around, then turn it off again.
+	 * @param scanFallback
+	 */
+	public void setScanFallback(boolean scanFallback){
+		this.scanFallback = scanFallback;
+	}
+	
+	/**
+	 * Takes a connection from the pool, recording how long that took
+	 */
+	private Jedis borrow(JedisPool pool){
+		long start = System.nanoTime();
+		try{
+			Jedis jedis = pool.getResource();
+			metrics.poolWait(start, false);
+			return jedis;
+		}catch(RuntimeException e){
+			//the pool doesn't block when exhausted, it fails right away
+			boolean exhausted = false;
+			for(Throwable t = e; t != null; t = t.getCause()){
+				exhausted |= t instanceof NoSuchElementException;
+			}
+			metrics.poolWait(start, exhausted);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the latencies, sizes and errors of this cache
+	 */
+	public RedisMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * Records the failure for the shard's circuit breaker and logs it
+	 */
+	private void failed(RedisShard shard, Exception e){
+		shard.failed(e);
+		logJedisError(e);
+	}
+	
+	private void logJedisError(Exception e){
+		metrics.error(RedisCircuitBreaker.isConnectionFailure(e));
+		//we dont want to pollute the logs if the cache goes down, just enough to know that its down
+		int errors = JEDIS_ERRORS.getAndIncrement();
+		if(errors < 100 || errors % 100000 == 0){
+			log.error(e.getMessage(), e);
+			if(errors > 100){
+				log.error("\n*****\nCheck if Jedis server is down. No cache is being used.\n*****\n");
+				//restart count
+				JEDIS_ERRORS.set(101);
+			}			
+		}
+	}
+	
+	/**
+	 * Keeps a clean copy of a value read from or written to Redis, for when it becomes unavailable,
+	 * and records its size
+	 * @param operation GET for a value read, STORE for one written
+	 * @return the value
+	 */
+	private byte[] keep(RedisMetrics.Operation operation, String key, byte[] value, String container){
+		metrics.payload(operation, value);
+		RedisDegradedStore store = degradedStore;
+		return store == null ? value : store.cache(key, value, container);
+	}
+	
+	private void keepAll(List<String> keys, List<byte[]> values){
+		for(int i = 0; i < keys.size(); i++){
+			keep(RedisMetrics.Operation.GET, keys.get(i), values.get(i), null);
+		}
+	}
+	
+	private void keepAll(Map<String, byte[]> values){
+		for(Map.Entry<String, byte[]> entry : values.entrySet()){
+			keep(RedisMetrics.Operation.STORE, entry.getKey(), entry.getValue(), null);
+		}
+	}
+	
+	private void keepAll(Map<String, byte[]> values, Collection<String> deletes, String indexKey){
+		for(Map.Entry<String, byte[]> entry : values.entrySet()){
+			keep(RedisMetrics.Operation.STORE, entry.getKey(), entry.getValue(), indexKey);
+		}
+		forgetAll(deletes);
+	}
+	
+	private void keepFields(RedisMetrics.Operation operation, String key, Map<String, byte[]> values, Collection<String> deleteFields){
+		for(Map.Entry<String, byte[]> entry : values.entrySet()){
+			keep(operation, RedisNearCache.fieldKey(key, entry.getKey()), entry.getValue(), key);
+		}
+		for(String field : deleteFields){
+			forget(RedisNearCache.fieldKey(key, field));
+		}
+	}
+	
+	private void forget(String key){
+		RedisDegradedStore store = degradedStore;
+		if(store != null){
+			store.remove(key);
+		}
+	}
+	
+	private void forgetAll(Collection<String> keys){
+		for(String key : keys){
+			forget(key);
+		}
+	}
+	
+	private byte[] degradedGet(String key){
+		RedisDegradedStore store = degradedStore;
+		return store == null ? null : store.get(key);
+	}
+	
+	private void degradedWrite(String key, byte[] value, int expireSeconds, String container, boolean expireContainer){
+		RedisDegradedStore store = degradedStore;
+		if(store != null){
+			store.write(key, value, expireSeconds, container, expireContainer);
+		}
+	}
+	
+	private Set<String> getDegradedMembers(String container){
+		RedisDegradedStore store = degradedStore;
+		return store == null ? new HashSet<String>() : store.getMembers(container);
+	}
+	
+	/**
+	 * Writes back what was written to the local store while the shard was unavailable, skipping the keys
+	 * that changed in Redis since: other nodes may have reached it while this one couldn't.
+	 * Runs on the circuit breaker's probe thread once the shard answers again.
+	 */
+	private void reconcile(RedisShard shard){
+		RedisDegradedStore store = degradedStore;
+		if(store == null){
+			return;
+		}
+		int count = 0;
+		int skipped = 0;
+		for(String key : store.getDirtyKeys()){
+			if(getShard(RedisNearCache.keyOf(key)) != shard){
+				continue;
+			}
+			RedisDegradedStore.Entry entry = store.takeDirty(key);
+			if(entry == null){
+				continue;
+			}
+			String field = RedisNearCache.fieldOf(key);
+			if(entry.conflicted || !isUnchanged(shard, entry, field != null ? entry.container : key, field)){
+				skipped++;
+				continue;
+			}
+			if(field != null){
+				if(entry.value == null){
+					deleteHashField(entry.container, field);
+				}else{
+					storeHashBytes(entry.container, field, entry.value, entry.expireSeconds);
+				}
+			}else if(entry.value == null){
+				if(entry.container == null){
+					deleteCacheObject(key);
+				}else{
+					deleteCacheObject(key, entry.container);
+				}
+			}else if(entry.container != null){
+				storeBytes(key, entry.value, entry.container, entry.expireSeconds, entry.expireContainer);
+			}else{
+				multiStore(shard, Collections.singletonMap(key, entry.value), entry.expireSeconds, null);
+			}
+			count++;
+		}
+		if(count > 0){
+			log.info("Wrote back " + count + " writes made while " + shard + " was unavailable");
+		}
+		if(skipped > 0){
+			log.warn("Dropped " + skipped + " writes made while " + shard + " was unavailable, the keys changed in Redis since");
+		}
+	}
+	
+	/**
+	 * @return whether Redis still holds what it held before the entry was first written locally,
+	 * true if that isn't known
+	 */
+	private boolean isUnchanged(RedisShard shard, RedisDegradedStore.Entry entry, String key, String field){
+		if(entry.base == null){
+			return true;
+		}
+		Jedis jedis = null;
+		try{
+			jedis = borrow(shard.pool);
+			byte[] current = field == null ? jedis.get(SafeEncoder.encode(key))
+					: jedis.hget(SafeEncoder.encode(key), SafeEncoder.encode(field));
+			return Arrays.equals(entry.base, RedisDegradedStore.digest(current));
+		}catch(Exception e){
+			failed(shard, e);
+			//the write back fails the same way, and is kept locally again if the shard is stopped
+			return true;
+		}finally{
+			if(jedis != null){
+				shard.pool.returnResource(jedis);
+			}
 		}
-		JEDIS_ERRORS++;
 	}
 }
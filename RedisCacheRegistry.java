@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands out one RedisCache to all the stores of a class loader, so they share its pools.
+ * It is created and warmed up by the first {@link #acquire()} and destroyed by the last {@link #release(RedisCache)}.
+ * <p>
+ * It is configured from {@value #CONFIG_FILE} on the class path, if there is one, and then
+ * the redis.* system properties, see {@link RedisCache#configure(Properties)}.
+ */
+public final class RedisCacheRegistry {
+	private static final Log log = LogFactory.getLog(RedisCacheRegistry.class);
+	
+	public static final String CONFIG_FILE = "redis-session.properties";
+	
+	private static RedisCache cache;
+	private static int references = 0;
+	
+	private RedisCacheRegistry(){
+	}
+	
+	/**
+	 * @return the shared cache, pass it to {@link #release(RedisCache)} when done with it
+	 */
+	public static synchronized RedisCache acquire(){
+		if(cache == null){
+			RedisCache created = new RedisCache();
+			created.configure(loadConfiguration());
+			created.init();
+			created.warmUp();
+			cache = created;
+		}
+		references++;
+		return cache;
+	}
+	
+	/**
+	 * Destroys the shared cache once every store that acquired it has released it
+	 * @param released
+	 */
+	public static synchronized void release(RedisCache released){
+		if(released != cache || references == 0){
+			return;
+		}
+		if(--references == 0){
+			cache.destroy();
+			cache = null;
+		}
+	}
+	
+	/**
+	 * @return the properties of {@value #CONFIG_FILE}, overridden by the system properties
+	 */
+	static Properties loadConfiguration(){
+		Properties config = new Properties();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if(loader == null){
+			loader = RedisCacheRegistry.class.getClassLoader();
+		}
+		InputStream in = loader.getResourceAsStream(CONFIG_FILE);
+		if(in != null){
+			try{
+				config.load(in);
+			}catch(Exception e){
+				log.error("Could not read " + CONFIG_FILE, e);
+			}finally{
+				try{
+					in.close();
+				}catch(Exception e){
+					//nothing left to read
+				}
+			}
+		}
+		config.putAll(System.getProperties());
+		return config;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Stops calls to a Redis node that keeps failing to connect or answer in time, so requests don't each wait
+ * for a timeout. Once enough failures happen within the window the circuit opens, and a probe pings the
+ * node until it answers again. Then the circuit closes and the recovery callback runs.
+ */
+public class RedisCircuitBreaker {
+	private static final Log log = LogFactory.getLog(RedisCircuitBreaker.class);
+	
+	private final String host;
+	private final int port;
+	private final int failureThreshold;
+	private final long failureWindow;
+	private final long probeInterval;
+	private final Runnable onRecovery;
+	
+	private volatile boolean open = false;
+	private volatile boolean stopped = false;
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long windowStart = System.currentTimeMillis();
+	
+	/**
+	 * @param host
+	 * @param port
+	 * @param failureThreshold failures within the window that open the circuit
+	 * @param failureWindow in milliseconds
+	 * @param probeInterval how often the node is pinged while the circuit is open, in milliseconds
+	 * @param onRecovery runs on the probe thread when the circuit closes again
+	 */
+	public RedisCircuitBreaker(String host, int port, int failureThreshold, long failureWindow,
+			long probeInterval, Runnable onRecovery){
+		this.host = host;
+		this.port = port;
+		this.failureThreshold = failureThreshold;
+		this.failureWindow = failureWindow;
+		this.probeInterval = probeInterval;
+		this.onRecovery = onRecovery;
+	}
+	
+	/**
+	 * @return false while the circuit is open, calls shouldn't be made then
+	 */
+	public boolean isAvailable(){
+		return !open;
+	}
+	
+	/**
+	 * Records a failed call, only failures to reach the node count
+	 * @param e
+	 */
+	public void failed(Exception e){
+		if(open || !isConnectionFailure(e)){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if(now - windowStart > failureWindow){
+			windowStart = now;
+			failures.set(0);
+		}
+		if(failures.incrementAndGet() >= failureThreshold){
+			trip();
+		}
+	}
+	
+	private synchronized void trip(){
+		if(open){
+			return;
+		}
+		open = true;
+		log.error("Redis " + host + ":" + port + " is unavailable, calls to it are stopped until it answers again");
+		Thread probe = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				probe();
+			}
+		}, "RedisCircuitBreaker-" + host + ":" + port);
+		probe.setDaemon(true);
+		probe.start();
+	}
+	
+	private void probe(){
+		while(open && !stopped){
+			try{
+				Thread.sleep(probeInterval);
+			}catch(InterruptedException e){
+				return;
+			}
+			Jedis jedis = null;
+			try{
+				jedis = new Jedis(host, port, (int) probeInterval);
+				jedis.ping();
+				failures.set(0);
+				windowStart = System.currentTimeMillis();
+				open = false;
+				log.info("Redis " + host + ":" + port + " is available again");
+			}catch(Exception e){
+				//still down
+			}finally{
+				if(jedis != null){
+					try{
+						jedis.disconnect();
+					}catch(Exception e){
+						//probing again anyway
+					}
+				}
+			}
+		}
+		if(!open && onRecovery != null){
+			try{
+				onRecovery.run();
+			}catch(Exception e){
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Stops probing
+	 */
+	public void destroy(){
+		stopped = true;
+	}
+	
+	/**
+	 * @param e
+	 * @return whether the node couldn't be reached or didn't answer in time, as opposed to refusing a command
+	 */
+	static boolean isConnectionFailure(Throwable e){
+		for(Throwable t = e; t != null; t = t.getCause()){
+			if(t instanceof NoSuchElementException){
+				//the pool is exhausted, the node itself is fine
+				return false;
+			}
+		}
+		for(Throwable t = e; t != null; t = t.getCause()){
+			if(t instanceof JedisConnectionException || t instanceof TimeoutException || t instanceof IOException){
+				return true;
+			}
+		}
+		return false;
+	}
+}
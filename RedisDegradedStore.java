@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded local copy of the values this node read and wrote, so it can keep serving its own sessions
+ * while Redis is unavailable. While healthy every value read or written is kept as a clean entry, and
+ * dropped when another node changes it. While Redis is unavailable writes and deletes are kept as dirty
+ * entries, to be written back once it recovers, unless the key changed in Redis in the meantime.
+ * <p>
+ * Entries can belong to a container: the index a key is recorded in, or the hash a field
+ * ({@link RedisNearCache#fieldKey(String, String)}) is part of.
+ * <p>
+ * The entries are split over stripes by key, each with its own lock and its share of the bytes, so
+ * request threads don't all wait on one lock. The fields of a hash share the stripe of the hash.
+ */
+public class RedisDegradedStore {
+	private static final Log log = LogFactory.getLog(RedisDegradedStore.class);
+	
+	private static final int STRIPES = 16;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	
+	/**
+	 * @param maxBytes the most bytes of keys and values kept
+	 */
+	public RedisDegradedStore(long maxBytes){
+		for(int i = 0; i < STRIPES; i++){
+			stripes[i] = new Stripe(maxBytes / STRIPES);
+		}
+	}
+	
+	private Stripe stripeOf(String key){
+		int hash = RedisNearCache.keyOf(key).hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (STRIPES - 1)];
+	}
+	
+	/**
+	 * @param key
+	 * @return the value, or null if it isn't known or was deleted
+	 */
+	public byte[] get(String key){
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			Entry entry = stripe.entries.get(key);
+			return entry == null ? null : entry.value;
+		}
+	}
+	
+	/**
+	 * Keeps a clean copy of a value read from or written to Redis
+	 * @param key
+	 * @param value null if it doesn't exist
+	 * @param container the index or hash the key belongs to, or null to keep the one it was written with
+	 * @return the value
+	 */
+	public byte[] cache(String key, byte[] value, String container){
+		if(value == null){
+			remove(key);
+			return null;
+		}
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			Entry old = stripe.entries.get(key);
+			if(container == null && old != null){
+				container = old.container;
+			}
+			stripe.put(key, new Entry(value, false, 0, container, false, null));
+		}
+		return value;
+	}
+	
+	/**
+	 * Forgets a key deleted from Redis, along with the fields of a deleted hash
+	 * @param key
+	 */
+	public void remove(String key){
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			stripe.removeEntry(key);
+		}
+		removeMembers(key);
+	}
+	
+	private void removeMembers(String container){
+		//the keys of an index are spread over the stripes
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				stripe.removeMembers(container);
+			}
+		}
+	}
+	
+	/**
+	 * Called when another node changed a key in Redis. A clean copy of it is dropped, along with the
+	 * fields of a changed hash. A dirty entry isn't written back anymore, the change in Redis wins.
+	 * @param key
+	 */
+	public void invalidate(String key){
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			stripe.invalidate(key);
+			Set<String> fields = stripe.members.get(key);
+			if(fields != null){
+				for(String field : new ArrayList<String>(fields)){
+					//only the fields of a hash, the keys of an index are written on their own
+					if(key.equals(RedisNearCache.keyOf(field))){
+						stripe.invalidate(field);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Drops every clean copy, for when invalidations may have been missed
+	 */
+	public void clearClean(){
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				for(String key : new ArrayList<String>(stripe.entries.keySet())){
+					if(!stripe.entries.get(key).dirty){
+						stripe.removeEntry(key);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Keeps a write made while Redis is unavailable, to be written back later
+	 * @param key
+	 * @param value null for a delete
+	 * @param expireSeconds 0 for no expiry
+	 * @param container the index or hash the key belongs to, or null
+	 * @param expireContainer whether the container expires along with the key
+	 */
+	public void write(String key, byte[] value, int expireSeconds, String container, boolean expireContainer){
+		if(value == null){
+			//deleting a hash deletes its fields, the writes to them don't need to be written back anymore
+			removeMembers(key);
+		}
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			Entry old = stripe.entries.get(key);
+			//what Redis held before the first write, so a write back can tell whether it changed since
+			byte[] base = null;
+			boolean conflicted = false;
+			if(old != null && old.dirty){
+				base = old.base;
+				conflicted = old.conflicted;
+			}else if(old != null){
+				base = digest(old.value);
+			}
+			Entry entry = new Entry(value, true, expireSeconds, container, expireContainer, base);
+			entry.conflicted = conflicted;
+			stripe.put(key, entry);
+		}
+	}
+	
+	/**
+	 * @param container
+	 * @return the keys in the index, or the field keys of the hash, that weren't deleted
+	 */
+	public Set<String> getMembers(String container){
+		Set<String> keys = new HashSet<String>();
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				Set<String> all = stripe.members.get(container);
+				if(all != null){
+					for(String key : all){
+						Entry entry = stripe.entries.get(key);
+						if(entry != null && entry.value != null){
+							keys.add(key);
+						}
+					}
+				}
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * @param prefix
+	 * @return the keys that start with the prefix and weren't deleted
+	 */
+	public Set<String> getKeys(String prefix){
+		Set<String> keys = new HashSet<String>();
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				for(Map.Entry<String, Entry> entry : stripe.entries.entrySet()){
+					if(entry.getKey().startsWith(prefix) && entry.getValue().value != null){
+						keys.add(entry.getKey());
+					}
+				}
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return the keys with writes that haven't been written back yet
+	 */
+	public List<String> getDirtyKeys(){
+		List<String> keys = new ArrayList<String>();
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				for(Map.Entry<String, Entry> entry : stripe.entries.entrySet()){
+					if(entry.getValue().dirty){
+						keys.add(entry.getKey());
+					}
+				}
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Takes a dirty entry out of the store, to write it back
+	 * @param key
+	 * @return the entry, or null if it isn't dirty anymore
+	 */
+	public Entry takeDirty(String key){
+		Stripe stripe = stripeOf(key);
+		synchronized(stripe){
+			Entry entry = stripe.entries.get(key);
+			if(entry == null || !entry.dirty){
+				return null;
+			}
+			stripe.removeEntry(key);
+			return entry;
+		}
+	}
+	
+	public int getSize(){
+		int size = 0;
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+	
+	public long getBytes(){
+		long bytes = 0;
+		for(Stripe stripe : stripes){
+			synchronized(stripe){
+				bytes += stripe.bytes;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @param value
+	 * @return the digest write backs compare with, null for null
+	 */
+	static byte[] digest(byte[] value){
+		if(value == null){
+			return null;
+		}
+		try{
+			return MessageDigest.getInstance("MD5").digest(value);
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Part of the entries, guarded by its own monitor
+	 */
+	private static final class Stripe {
+		private final long maxBytes;
+		private long bytes = 0;
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		//the keys of the entries in each container
+		private final Map<String, Set<String>> members = new LinkedHashMap<String, Set<String>>();
+		
+		Stripe(long maxBytes){
+			this.maxBytes = maxBytes;
+		}
+		
+		void invalidate(String key){
+			Entry entry = entries.get(key);
+			if(entry == null){
+				return;
+			}
+			if(entry.dirty){
+				entry.conflicted = true;
+			}else{
+				removeEntry(key);
+			}
+		}
+		
+		void removeMembers(String container){
+			Set<String> keys = members.remove(container);
+			if(keys != null){
+				for(String key : keys){
+					Entry entry = entries.remove(key);
+					if(entry != null){
+						bytes -= entry.size(key);
+					}
+				}
+			}
+		}
+		
+		void removeEntry(String key){
+			Entry entry = entries.remove(key);
+			if(entry != null){
+				bytes -= entry.size(key);
+				if(entry.container != null){
+					Set<String> keys = members.get(entry.container);
+					if(keys != null){
+						keys.remove(key);
+						if(keys.isEmpty()){
+							members.remove(entry.container);
+						}
+					}
+				}
+			}
+		}
+		
+		void put(String key, Entry entry){
+			removeEntry(key);
+			entries.put(key, entry);
+			bytes += entry.size(key);
+			if(entry.container != null){
+				Set<String> keys = members.get(entry.container);
+				if(keys == null){
+					keys = new HashSet<String>();
+					members.put(entry.container, keys);
+				}
+				keys.add(key);
+			}
+			evict();
+		}
+		
+		/**
+		 * Evicts the least recently used clean entries, and dirty ones only when nothing else is left
+		 */
+		private void evict(){
+			for(boolean dirtyToo : new boolean[]{false, true}){
+				Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+				while(bytes > maxBytes && eldest.hasNext()){
+					Map.Entry<String, Entry> e = eldest.next();
+					if(e.getValue().dirty && !dirtyToo){
+						continue;
+					}
+					if(e.getValue().dirty){
+						log.warn("Local store is full, dropping the write of " + e.getKey() + " made while Redis was unavailable");
+					}
+					eldest.remove();
+					bytes -= e.getValue().size(e.getKey());
+					if(e.getValue().container != null){
+						Set<String> keys = members.get(e.getValue().container);
+						if(keys != null){
+							keys.remove(e.getKey());
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A value, or a delete when the value is null
+	 */
+	public static final class Entry {
+		final byte[] value;
+		final boolean dirty;
+		final int expireSeconds;
+		final String container;
+		final boolean expireContainer;
+		//digest of the value Redis held before the first write while it was unavailable, null if not known
+		final byte[] base;
+		//another node changed the key since, so it isn't written back
+		volatile boolean conflicted;
+		
+		Entry(byte[] value, boolean dirty, int expireSeconds, String container, boolean expireContainer, byte[] base){
+			this.value = value;
+			this.dirty = dirty;
+			this.expireSeconds = expireSeconds;
+			this.container = container;
+			this.expireContainer = expireContainer;
+			this.base = base;
+		}
+		
+		long size(String key){
+			return key.length() + (value == null ? 0 : value.length);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the keys of active sessions from expiring.
+ * <p>
+ * Touching a session queues an expiry refresh for its keys, but a session is refreshed at most
+ * once per refresh interval. The queued refreshes of all sessions are sent together, pipelined,
+ * from a background thread, so keeping sessions alive costs a fraction of a command per request.
+ * Because of that delay, keys should expire in the session timeout plus the refresh interval:
+ * see {@link #getExpireSeconds(int)}.
+ */
+public class RedisExpiryRefresher {
+	private static final Log log = LogFactory.getLog(RedisExpiryRefresher.class);
+	
+	private final RedisCache redisCache;
+	private final long refreshIntervalMillis;
+	//last time each session was queued for a refresh
+	private final ConcurrentMap<String, Long> lastRefresh = new ConcurrentHashMap<String, Long>();
+	//refreshes waiting to be sent, seconds to expire in by key
+	private final ConcurrentMap<String, Integer> pendingKeys = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<String, Integer> pendingIndexKeys = new ConcurrentHashMap<String, Integer>();
+	private final ScheduledExecutorService executor;
+	
+	/**
+	 * @param redisCache
+	 * @param refreshIntervalSeconds a session is refreshed at most once per this many seconds
+	 */
+	public RedisExpiryRefresher(RedisCache redisCache, int refreshIntervalSeconds){
+		this.redisCache = redisCache;
+		this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshIntervalSeconds);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "RedisExpiryRefresher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					flush();
+				}catch(Exception e){
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * @param sessionTimeoutSeconds
+	 * @return the expiry for keys of a session with the given timeout, 0 if the session never times out
+	 */
+	public int getExpireSeconds(int sessionTimeoutSeconds){
+		if(sessionTimeoutSeconds <= 0){
+			return 0;
+		}
+		return sessionTimeoutSeconds + (int) TimeUnit.MILLISECONDS.toSeconds(refreshIntervalMillis);
+	}
+	
+	/**
+	 * Queues an expiry refresh for the session, unless it was refreshed within the refresh interval
+	 * @param sessionKey identifies the session to rate limit on
+	 * @param expireSeconds
+	 * @param keys plain keys of the session
+	 * @param indexKeys indexes of the session, every key recorded in them is refreshed too
+	 */
+	public void touch(String sessionKey, int expireSeconds, String[] keys, String[] indexKeys){
+		if(expireSeconds <= 0){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Long last = lastRefresh.get(sessionKey);
+		if(last != null && now - last < refreshIntervalMillis){
+			return;
+		}
+		if(last == null ? lastRefresh.putIfAbsent(sessionKey, now) != null : !lastRefresh.replace(sessionKey, last, now)){
+			//another thread got there first
+			return;
+		}
+		for(String key : keys){
+			pendingKeys.put(key, expireSeconds);
+		}
+		for(String indexKey : indexKeys){
+			pendingIndexKeys.put(indexKey, expireSeconds);
+		}
+	}
+	
+	/**
+	 * Forgets the session, like when its keys are deleted
+	 * @param sessionKey
+	 */
+	public void forget(String sessionKey){
+		lastRefresh.remove(sessionKey);
+	}
+	
+	/**
+	 * Sends all queued refreshes in one pipeline
+	 */
+	public void flush(){
+		Map<String, Integer> keys = drain(pendingKeys);
+		Map<String, Integer> indexKeys = drain(pendingIndexKeys);
+		if(!keys.isEmpty() || !indexKeys.isEmpty()){
+			redisCache.expireBatch(keys, indexKeys);
+		}
+		//sessions that weren't touched for a whole interval are refreshed right away next time anyway
+		long cutoff = System.currentTimeMillis() - refreshIntervalMillis;
+		for(Iterator<Long> i = lastRefresh.values().iterator(); i.hasNext();){
+			if(i.next() < cutoff){
+				i.remove();
+			}
+		}
+	}
+	
+	private static Map<String, Integer> drain(ConcurrentMap<String, Integer> pending){
+		Map<String, Integer> drained = new HashMap<String, Integer>();
+		for(String key : pending.keySet()){
+			Integer seconds = pending.remove(key);
+			if(seconds != null){
+				drained.put(key, seconds);
+			}
+		}
+		return drained;
+	}
+	
+	public void destroy(){
+		executor.shutdown();
+		flush();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non negative values, in power of two buckets. Percentiles are
+ * the upper bound of their bucket, so they are off by less than a factor of two.
+ */
+public class RedisHistogram {
+	//bucket 0 counts zeros, bucket i counts values from 2^(i-1) up to 2^i - 1
+	private final AtomicLongArray buckets = new AtomicLongArray(65);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	
+	public void record(long value){
+		if(value < 0){
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+	}
+	
+	public long getCount(){
+		return count.sum();
+	}
+	
+	public long getSum(){
+		return sum.sum();
+	}
+	
+	public long getMean(){
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket the percentile falls in, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile){
+		long total = 0;
+		for(int i = 0; i < buckets.length(); i++){
+			total += buckets.get(i);
+		}
+		if(total == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for(int i = 0; i < buckets.length(); i++){
+			seen += buckets.get(i);
+			if(seen >= rank){
+				return i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Starts over, values recorded meanwhile may be lost
+	 */
+	public void reset(){
+		for(int i = 0; i < buckets.length(); i++){
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+	}
+}
@@ -16,54 +16,258 @@
  */
 
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.wicket.pageStore.IDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.util.SafeEncoder;
 
 public class RedisMemoryStore implements IDataStore {
+	private static final Logger log = LoggerFactory.getLogger(RedisMemoryStore.class);
 	
 	protected RedisCache redisCache;
+	//compresses pages on their way to Redis, null to store them as they are
+	private final RedisPayloadCompressor compressor;
+	//whether pages are stored behind a codec marker, always with a compressor
+	private volatile boolean payloadMarkers;
+	//pages of a session are refreshed at most once per this many seconds
+	private static final int EXPIRY_REFRESH_INTERVAL = 60;
+	private final RedisExpiryRefresher expiryRefresher;
+	//pages expire this long after their session was last used, should match the session-timeout in web.xml
+	private volatile int sessionTimeout = 30 * 60;
+	//per session budget, 0 for no limit
+	private volatile int maxPagesPerSession = 0;
+	private volatile long maxBytesPerSession = 0;
+	//field of the sizes hash holding the total size of the session's pages
+	private static final String TOTAL_SIZE = "total";
+	/**
+	 * Stores a page and drops the least recently stored pages of the session from its budget until it fits.
+	 * KEYS[1] = page key, KEYS[2] = page index, KEYS[3] = page sizes hash,
+	 * ARGV[1] = page, ARGV[2] = score, ARGV[3] = expire seconds (0 for never),
+	 * ARGV[4] = max pages, ARGV[5] = max bytes (0 for no limit). Returns the keys of the evicted pages,
+	 * which aren't declared, so the caller deletes them.
+	 */
+	private static final String STORE_PAGE_SCRIPT =
+		"local expire = tonumber(ARGV[3]) " +
+		"if expire > 0 then redis.call('SET', KEYS[1], ARGV[1], 'EX', expire) " +
+		"else redis.call('SET', KEYS[1], ARGV[1]) end " +
+		"redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1]) " +
+		"local size = string.len(ARGV[1]) " +
+		"local old = tonumber(redis.call('HGET', KEYS[3], KEYS[1]) or '0') " +
+		"redis.call('HSET', KEYS[3], KEYS[1], size) " +
+		"local total = redis.call('HINCRBY', KEYS[3], '" + TOTAL_SIZE + "', size - old) " +
+		"local maxPages = tonumber(ARGV[4]) " +
+		"local maxBytes = tonumber(ARGV[5]) " +
+		"local evicted = {} " +
+		"while (maxPages > 0 and redis.call('ZCARD', KEYS[2]) > maxPages) or (maxBytes > 0 and total > maxBytes) do " +
+		"  local oldest = redis.call('ZRANGE', KEYS[2], 0, 0)[1] " +
+		"  if not oldest or oldest == KEYS[1] then break end " +
+		"  redis.call('ZREM', KEYS[2], oldest) " +
+		"  total = redis.call('HINCRBY', KEYS[3], '" + TOTAL_SIZE + "', -tonumber(redis.call('HGET', KEYS[3], oldest) or '0')) " +
+		"  redis.call('HDEL', KEYS[3], oldest) " +
+		"  table.insert(evicted, oldest) " +
+		"end " +
+		"if expire > 0 then " +
+		"  redis.call('EXPIRE', KEYS[2], expire) " +
+		"  redis.call('EXPIRE', KEYS[3], expire) " +
+		"end " +
+		"return evicted";
+	/**
+	 * Removes a page and its size from the session's budget.
+	 * KEYS[1] = page key, KEYS[2] = page index, KEYS[3] = page sizes hash
+	 */
+	private static final String REMOVE_PAGE_SCRIPT =
+		"redis.call('DEL', KEYS[1]) " +
+		"redis.call('ZREM', KEYS[2], KEYS[1]) " +
+		"local size = redis.call('HGET', KEYS[3], KEYS[1]) " +
+		"if size then " +
+		"  redis.call('HINCRBY', KEYS[3], '" + TOTAL_SIZE + "', -tonumber(size)) " +
+		"  redis.call('HDEL', KEYS[3], KEYS[1]) " +
+		"end " +
+		"return 0";
 	
 	public RedisMemoryStore(){
-		redisCache = new RedisCache();
-		redisCache.init();
+		this(null);
 	}
 	
+	/**
+	 * @param compressor compresses the pages, or null to store them uncompressed
+	 */
+	public RedisMemoryStore(RedisPayloadCompressor compressor){
+		this.compressor = compressor;
+		payloadMarkers = compressor != null;
+		redisCache = RedisCacheRegistry.acquire();
+		expiryRefresher = new RedisExpiryRefresher(redisCache, EXPIRY_REFRESH_INTERVAL);
+	}
+	
+	//the session id is hash tagged when sharded, so the pages of a session and their index live on one shard
 	private String getKeyPrevix(String sessionId){
-		return "page-" + sessionId + "-";
+		return "page-" + redisCache.tagged(sessionId) + "-";
 	}
 	private String getKey(String sessionId, int id){
 		return getKeyPrevix(sessionId) + id;
 	}
+	private String getIndexKey(String sessionId){
+		return "pageindex-" + redisCache.tagged(sessionId);
+	}
+	private String getSizesKey(String sessionId){
+		return "pagesize-" + redisCache.tagged(sessionId);
+	}
+	//scripts don't run while Redis is unavailable, the pages are kept in the local store without their budget then
+	private boolean isBounded(String sessionId){
+		return (maxPagesPerSession > 0 || maxBytesPerSession > 0) && redisCache.getShard(getIndexKey(sessionId)).isAvailable();
+	}
 	
 	@Override
 	public byte[] getData(String sessionId, int id) {
-		Object obj = redisCache.getCacheObject(getKey(sessionId, id));
-		if(obj != null && obj instanceof byte[]){
-			return (byte[]) obj;
-		}else{
+		byte[] data = redisCache.getBytes(getKey(sessionId, id));
+		touch(sessionId);
+		if(!payloadMarkers){
+			//the pages are stored as the serializer wrote them, whatever byte they start with
+			return data;
+		}
+		try{
+			//marked pages, and the unmarked Java serialized pages stored before, read the same
+			return RedisPayloadCompressor.decode(data);
+		}catch(IOException e){
+			log.error("Could not read page " + id + " of session " + sessionId, e);
 			return null;
 		}
 	}
 
 	@Override
 	public void removeData(String sessionId, int id) {
-		redisCache.deleteCacheObject(getKey(sessionId, id));
+		if(isBounded(sessionId)){
+			redisCache.evalScript(REMOVE_PAGE_SCRIPT,
+				Arrays.asList(getKey(sessionId, id), getIndexKey(sessionId), getSizesKey(sessionId)),
+				Arrays.<String>asList());
+		}else{
+			redisCache.deleteCacheObject(getKey(sessionId, id), getIndexKey(sessionId));
+		}
 	}
 
 	@Override
 	public void removeData(String sessionId) {
-		for(String key : redisCache.getCachedKeys(getKeyPrevix(sessionId))){
-			redisCache.deleteCacheObject(key);
-		}
+		//ZRANGE of the index, then a single DEL for a session of up to RedisCache.BULK_CHUNK_SIZE pages
+		redisCache.clearIndexed(getIndexKey(sessionId), getKeyPrevix(sessionId), getSizesKey(sessionId));
+		expiryRefresher.forget(sessionId);
 	}
 
 	@Override
 	public void storeData(String sessionId, int id, byte[] data) {
-		redisCache.storeCacheObject(getKey(sessionId, id), data);
+		if(compressor != null){
+			data = compressor.compress(data);
+		}else if(payloadMarkers){
+			data = RedisPayloadCompressor.mark(data);
+		}
+		if(isBounded(sessionId)){
+			Object evicted = redisCache.evalBinaryScript(STORE_PAGE_SCRIPT,
+				Arrays.asList(SafeEncoder.encode(getKey(sessionId, id)), SafeEncoder.encode(getIndexKey(sessionId)),
+					SafeEncoder.encode(getSizesKey(sessionId))),
+				Arrays.asList(data, SafeEncoder.encode(String.valueOf(System.currentTimeMillis())),
+					SafeEncoder.encode(String.valueOf(getExpireSeconds())),
+					SafeEncoder.encode(String.valueOf(maxPagesPerSession)),
+					SafeEncoder.encode(String.valueOf(maxBytesPerSession))));
+			if(evicted instanceof List && !((List<?>) evicted).isEmpty()){
+				List<String> keys = new ArrayList<String>();
+				for(Object key : (List<?>) evicted){
+					keys.add(SafeEncoder.encode((byte[]) key));
+				}
+				//they are tagged with the session id, so they live on the same shard as the index
+				redisCache.multiDelete(keys);
+				if(log.isDebugEnabled()){
+					log.debug("Evicted " + keys.size() + " pages of session " + sessionId);
+				}
+			}
+		}else{
+			redisCache.storeBytes(getKey(sessionId, id), data, getIndexKey(sessionId), getExpireSeconds());
+		}
+		touch(sessionId);
 	}
 
 	@Override
 	public void destroy() {
-		redisCache.destroy();
+		if(compressor != null){
+			compressor.logStatistics();
+		}
+		expiryRefresher.destroy();
+		RedisCacheRegistry.release(redisCache);
+	}
+	
+	private int getExpireSeconds(){
+		return expiryRefresher.getExpireSeconds(sessionTimeout);
+	}
+	
+	/**
+	 * Keeps all pages of the session from expiring while it is in use
+	 */
+	private void touch(String sessionId){
+		String[] keys = isBounded(sessionId) ? new String[]{getSizesKey(sessionId)} : new String[0];
+		expiryRefresher.touch(sessionId, getExpireSeconds(), keys, new String[]{getIndexKey(sessionId)});
+	}
+	
+	public int getSessionTimeout(){
+		return sessionTimeout;
+	}
+	
+	/**
+	 * Pages expire this many seconds after their session was last used, 0 for never.
+	 * Set it to the session-timeout of web.xml.
+	 * @param sessionTimeout
+	 */
+	public void setSessionTimeout(int sessionTimeout){
+		this.sessionTimeout = sessionTimeout;
+	}
+	
+	public int getMaxPagesPerSession(){
+		return maxPagesPerSession;
+	}
+	
+	/**
+	 * Keeps at most this many pages per session, evicting the least recently stored ones. 0 for no limit.
+	 * @param maxPagesPerSession
+	 */
+	public void setMaxPagesPerSession(int maxPagesPerSession){
+		this.maxPagesPerSession = maxPagesPerSession;
+	}
+	
+	public long getMaxBytesPerSession(){
+		return maxBytesPerSession;
+	}
+	
+	/**
+	 * Keeps at most this many bytes of (stored, so possibly compressed) pages per session,
+	 * evicting the least recently stored ones. 0 for no limit.
+	 * @param maxBytesPerSession
+	 */
+	public void setMaxBytesPerSession(long maxBytesPerSession){
+		this.maxBytesPerSession = maxBytesPerSession;
+	}
+	
+	public boolean isPayloadMarkers(){
+		return payloadMarkers;
+	}
+	
+	/**
+	 * Whether pages are stored behind a codec marker, and read expecting one. Always on with a compressor.
+	 * After turning compression off, turn it on so the compressed pages stay readable, new pages are then
+	 * stored uncompressed behind the marker. Without markers, pages are stored and read as they are.
+	 * @param payloadMarkers
+	 */
+	public void setPayloadMarkers(boolean payloadMarkers){
+		this.payloadMarkers = payloadMarkers || compressor != null;
+	}
+	
+	/**
+	 * @return the page compressor, with the bytes in and out so far, or null if pages aren't compressed
+	 */
+	public RedisPayloadCompressor getCompressor(){
+		return compressor;
 	}
 
 	@Override
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Latency, payload size, serialization, pool and error statistics of a {@link RedisCache}. Recording
+ * only touches lock free counters, so it stays on. Registered as an MXBean under
+ * WicketRedisSession:type=RedisCache, and passed on to the listener if there is one.
+ */
+public class RedisMetrics implements RedisMetricsMXBean {
+	private static final Log log = LogFactory.getLog(RedisMetrics.class);
+	
+	/**
+	 * What a call to Redis did
+	 */
+	public enum Operation {
+		GET, STORE, DELETE, KEYS, EXPIRE, SCRIPT, PUBLISH
+	}
+	
+	private final RedisCache cache;
+	//by operation, master then replica, in microseconds
+	private final RedisHistogram[] latencies = new RedisHistogram[Operation.values().length * 2];
+	//by operation, only GET and STORE are recorded
+	private final RedisHistogram[] payloads = new RedisHistogram[Operation.values().length];
+	private final RedisHistogram serialization = new RedisHistogram();
+	private final RedisHistogram deserialization = new RedisHistogram();
+	private final RedisHistogram poolWait = new RedisHistogram();
+	private final LongAdder poolExhausted = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder connectionErrors = new LongAdder();
+	private volatile RedisMetricsListener listener;
+	private ObjectName name;
+	
+	RedisMetrics(RedisCache cache){
+		this.cache = cache;
+		for(int i = 0; i < latencies.length; i++){
+			latencies[i] = new RedisHistogram();
+		}
+		for(int i = 0; i < payloads.length; i++){
+			payloads[i] = new RedisHistogram();
+		}
+	}
+	
+	/**
+	 * Records a call that started at the given {@link System#nanoTime()}
+	 */
+	void operation(Operation operation, boolean master, long start){
+		long nanos = System.nanoTime() - start;
+		latencies[operation.ordinal() * 2 + (master ? 0 : 1)].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		RedisMetricsListener l = listener;
+		if(l != null){
+			l.onOperation(operation, master, nanos);
+		}
+	}
+	
+	void payload(Operation operation, byte[] value){
+		if(value == null){
+			return;
+		}
+		payloads[operation.ordinal()].record(value.length);
+		RedisMetricsListener l = listener;
+		if(l != null){
+			l.onPayload(operation, value.length);
+		}
+	}
+	
+	void serialization(boolean serialize, long start, int bytes){
+		long nanos = System.nanoTime() - start;
+		(serialize ? serialization : deserialization).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		RedisMetricsListener l = listener;
+		if(l != null){
+			l.onSerialization(serialize, nanos, bytes);
+		}
+	}
+	
+	void poolWait(long start, boolean exhausted){
+		long nanos = System.nanoTime() - start;
+		poolWait.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		if(exhausted){
+			poolExhausted.increment();
+		}
+		RedisMetricsListener l = listener;
+		if(l != null){
+			l.onPoolWait(nanos, exhausted);
+		}
+	}
+	
+	void error(boolean connectionFailure){
+		errors.increment();
+		if(connectionFailure){
+			connectionErrors.increment();
+		}
+		RedisMetricsListener l = listener;
+		if(l != null){
+			l.onError(connectionFailure);
+		}
+	}
+	
+	public RedisMetricsListener getListener(){
+		return listener;
+	}
+	
+	/**
+	 * @param listener receives every measurement as well, null for none
+	 */
+	public void setListener(RedisMetricsListener listener){
+		this.listener = listener;
+	}
+	
+	/**
+	 * Registers the MXBean with the platform MBean server
+	 */
+	synchronized void register(){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			//one per cache, a server may run several webapps with a cache each
+			name = new ObjectName("WicketRedisSession:type=RedisCache,id=" + Integer.toHexString(System.identityHashCode(cache)));
+			server.registerMBean(this, name);
+		}catch(Exception e){
+			name = null;
+			log.warn("Could not register the Redis metrics with JMX", e);
+		}
+	}
+	
+	synchronized void unregister(){
+		if(name == null){
+			return;
+		}
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}catch(Exception e){
+			log.warn("Could not unregister the Redis metrics from JMX", e);
+		}
+		name = null;
+	}
+	
+	/**
+	 * @return the histogram of the operation, in microseconds
+	 */
+	public RedisHistogram getLatency(Operation operation, boolean master){
+		return latencies[operation.ordinal() * 2 + (master ? 0 : 1)];
+	}
+	
+	/**
+	 * @return the histogram of the sizes of the values read (GET) or written (STORE)
+	 */
+	public RedisHistogram getPayload(Operation operation){
+		return payloads[operation.ordinal()];
+	}
+	
+	private interface Statistic {
+		long of(RedisHistogram histogram);
+	}
+	
+	private Map<String, Long> byOperation(Statistic statistic){
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for(Operation operation : Operation.values()){
+			for(boolean master : new boolean[]{true, false}){
+				RedisHistogram histogram = getLatency(operation, master);
+				if(histogram.getCount() > 0){
+					values.put(operation + (master ? ".master" : ".replica"), statistic.of(histogram));
+				}
+			}
+		}
+		return values;
+	}
+	
+	private Map<String, Long> byPayload(Statistic statistic){
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for(Operation operation : Operation.values()){
+			RedisHistogram histogram = getPayload(operation);
+			if(histogram.getCount() > 0){
+				values.put(operation.toString(), statistic.of(histogram));
+			}
+		}
+		return values;
+	}
+	
+	@Override
+	public Map<String, Long> getOperationCounts(){
+		return byOperation(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getCount();
+			}
+		});
+	}
+	
+	@Override
+	public Map<String, Long> getOperationMeanMicros(){
+		return byOperation(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getMean();
+			}
+		});
+	}
+	
+	@Override
+	public Map<String, Long> getOperation50thPercentileMicros(){
+		return byOperation(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getPercentile(50);
+			}
+		});
+	}
+	
+	@Override
+	public Map<String, Long> getOperation99thPercentileMicros(){
+		return byOperation(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getPercentile(99);
+			}
+		});
+	}
+	
+	@Override
+	public Map<String, Long> getPayloadMeanBytes(){
+		return byPayload(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getMean();
+			}
+		});
+	}
+	
+	@Override
+	public Map<String, Long> getPayload99thPercentileBytes(){
+		return byPayload(new Statistic(){
+			@Override
+			public long of(RedisHistogram histogram){
+				return histogram.getPercentile(99);
+			}
+		});
+	}
+	
+	@Override
+	public long getSerializationCount(){
+		return serialization.getCount();
+	}
+	
+	@Override
+	public long getSerializationMeanMicros(){
+		return serialization.getMean();
+	}
+	
+	@Override
+	public long getDeserializationCount(){
+		return deserialization.getCount();
+	}
+	
+	@Override
+	public long getDeserializationMeanMicros(){
+		return deserialization.getMean();
+	}
+	
+	@Override
+	public long getPoolWaitMeanMicros(){
+		return poolWait.getMean();
+	}
+	
+	@Override
+	public long getPoolWait99thPercentileMicros(){
+		return poolWait.getPercentile(99);
+	}
+	
+	@Override
+	public long getPoolExhaustedCount(){
+		return poolExhausted.sum();
+	}
+	
+	@Override
+	public long getErrorCount(){
+		return errors.sum();
+	}
+	
+	@Override
+	public long getConnectionErrorCount(){
+		return connectionErrors.sum();
+	}
+	
+	@Override
+	public long getNearCacheHits(){
+		RedisNearCache near = cache.getNearCache();
+		return near == null ? 0 : near.getHits();
+	}
+	
+	@Override
+	public long getNearCacheMisses(){
+		RedisNearCache near = cache.getNearCache();
+		return near == null ? 0 : near.getMisses();
+	}
+	
+	@Override
+	public double getNearCacheHitRatio(){
+		long hits = getNearCacheHits();
+		long lookups = hits + getNearCacheMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public int getUnavailableShards(){
+		List<RedisShard> shards = cache.getShards();
+		int unavailable = 0;
+		if(shards != null){
+			for(RedisShard shard : shards){
+				if(!shard.isAvailable()){
+					unavailable++;
+				}
+			}
+		}
+		return unavailable;
+	}
+	
+	@Override
+	public void reset(){
+		for(RedisHistogram histogram : latencies){
+			histogram.reset();
+		}
+		for(RedisHistogram histogram : payloads){
+			histogram.reset();
+		}
+		serialization.reset();
+		deserialization.reset();
+		poolWait.reset();
+		poolExhausted.reset();
+		errors.reset();
+		connectionErrors.reset();
+	}
+}
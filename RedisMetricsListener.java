@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receives every measurement of {@link RedisMetrics}, to pass them on to a metrics library.
+ * It is called on the thread that made the call to Redis, so it has to be quick and must not throw.
+ */
+public interface RedisMetricsListener {
+	
+	/**
+	 * @param operation
+	 * @param master whether it went to the master, rather than the replica
+	 * @param nanos how long the round trip took, including the wait for a connection
+	 */
+	default void onOperation(RedisMetrics.Operation operation, boolean master, long nanos){
+	}
+	
+	/**
+	 * @param operation {@link RedisMetrics.Operation#GET} for a value read, {@link RedisMetrics.Operation#STORE} for one written
+	 * @param bytes
+	 */
+	default void onPayload(RedisMetrics.Operation operation, int bytes){
+	}
+	
+	/**
+	 * @param serialize true for serialization, false for deserialization
+	 * @param nanos
+	 * @param bytes size of the serialized form
+	 */
+	default void onSerialization(boolean serialize, long nanos, int bytes){
+	}
+	
+	/**
+	 * @param nanos how long it took to get a connection from the pool
+	 * @param exhausted whether the pool had none left
+	 */
+	default void onPoolWait(long nanos, boolean exhausted){
+	}
+	
+	/**
+	 * @param connectionFailure whether Redis couldn't be reached, rather than refusing a command
+	 */
+	default void onError(boolean connectionFailure){
+	}
+}
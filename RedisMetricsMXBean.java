@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link RedisMetrics}. Operations are keyed like GET.master and GET.replica.
+ */
+public interface RedisMetricsMXBean {
+	
+	Map<String, Long> getOperationCounts();
+	
+	Map<String, Long> getOperationMeanMicros();
+	
+	Map<String, Long> getOperation50thPercentileMicros();
+	
+	Map<String, Long> getOperation99thPercentileMicros();
+	
+	/**
+	 * @return mean size of the values read (GET) and written (STORE)
+	 */
+	Map<String, Long> getPayloadMeanBytes();
+	
+	Map<String, Long> getPayload99thPercentileBytes();
+	
+	long getSerializationCount();
+	
+	long getSerializationMeanMicros();
+	
+	long getDeserializationCount();
+	
+	long getDeserializationMeanMicros();
+	
+	long getPoolWaitMeanMicros();
+	
+	long getPoolWait99thPercentileMicros();
+	
+	/**
+	 * @return how often a command failed because all pooled connections were in use
+	 */
+	long getPoolExhaustedCount();
+	
+	long getErrorCount();
+	
+	/**
+	 * @return the errors where Redis couldn't be reached or didn't answer in time
+	 */
+	long getConnectionErrorCount();
+	
+	long getNearCacheHits();
+	
+	long getNearCacheMisses();
+	
+	/**
+	 * @return hits divided by lookups, 0 without a near cache
+	 */
+	double getNearCacheHitRatio();
+	
+	/**
+	 * @return the number of shards calls are stopped to, see {@link RedisCircuitBreaker}
+	 */
+	int getUnavailableShards();
+	
+	/**
+	 * Starts all counts over
+	 */
+	void reset();
+}
@@ -0,0 +1,464 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * One Redis connection shared by any number of threads.
+ * <p>
+ * Commands are queued and a writer thread sends everything that queued up since its last write
+ * in one go, so concurrent commands are pipelined automatically. A reader thread parses the RESP
+ * replies and completes the futures of the commands in order. Replies are byte[] for bulk strings,
+ * String for status replies, Long for integers and List for arrays, errors complete the future
+ * with a {@link JedisDataException}.
+ * <p>
+ * When the connection breaks, every pending command fails and the next command reconnects. The connect
+ * runs on its own thread while commands queue up, at most maxQueued of them, beyond that they fail right
+ * away. If the connect fails, the queued commands fail with it and so does every command for the next second.
+ */
+public class RedisMultiplexedConnection {
+	private static final Log log = LogFactory.getLog(RedisMultiplexedConnection.class);
+	
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+	//initial size of the write buffer, it grows to fit the largest batch
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	//commands that may wait to be written, by default
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+	//after a failed connect, commands fail right away for this many milliseconds before connecting again
+	private static final long RECONNECT_DELAY = 1000;
+	
+	private final String host;
+	private final int port;
+	private final int connectTimeout;
+	private final boolean directBuffers;
+	
+	private final BlockingQueue<Command> queue;
+	private volatile Connection connection;
+	private volatile boolean closed = false;
+	private final AtomicBoolean connecting = new AtomicBoolean();
+	private volatile long reconnectAt;
+	
+	/**
+	 * @param host
+	 * @param port
+	 * @param connectTimeout in milliseconds
+	 * @param directBuffers whether the write buffer lives off-heap
+	 */
+	public RedisMultiplexedConnection(String host, int port, int connectTimeout, boolean directBuffers){
+		this(host, port, connectTimeout, directBuffers, DEFAULT_MAX_QUEUED);
+	}
+	
+	/**
+	 * @param host
+	 * @param port
+	 * @param connectTimeout in milliseconds
+	 * @param directBuffers whether the write buffer lives off-heap
+	 * @param maxQueued how many commands may wait to be written, beyond that they fail right away
+	 */
+	public RedisMultiplexedConnection(String host, int port, int connectTimeout, boolean directBuffers, int maxQueued){
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+		this.directBuffers = directBuffers;
+		this.queue = new LinkedBlockingQueue<Command>(maxQueued);
+	}
+	
+	/**
+	 * Sends one command
+	 * @param args the command and its arguments
+	 * @return completes with the reply
+	 */
+	public CompletableFuture<Object> send(byte[]... args){
+		Command command = new Command(args);
+		enqueue(command);
+		return command.reply;
+	}
+	
+	/**
+	 * Sends commands back to back, nothing from other threads goes in between them. Use it for MULTI/EXEC.
+	 * @param commands the commands and their arguments
+	 * @return completes with the replies, in order, when the last one is in
+	 */
+	public CompletableFuture<List<Object>> sendBatch(List<byte[][]> commands){
+		final Command batch = new Command(commands);
+		enqueue(batch);
+		return batch.batchReplies;
+	}
+	
+	private void enqueue(Command command){
+		if(closed){
+			command.fail(new JedisConnectionException("Connection to " + host + ":" + port + " is closed"));
+			return;
+		}
+		Connection c = connection;
+		boolean connected = c != null && !c.broken;
+		if(!connected && System.currentTimeMillis() < reconnectAt){
+			command.fail(new JedisConnectionException("Could not connect to " + host + ":" + port + " a moment ago"));
+			return;
+		}
+		if(!queue.offer(command)){
+			command.fail(new JedisConnectionException("Too many commands queued for " + host + ":" + port));
+			return;
+		}
+		if(!connected){
+			connect();
+		}
+	}
+	
+	/**
+	 * Connects on another thread, unless that is already happening. The queued commands are written
+	 * once connected, or fail if it can't connect.
+	 */
+	private void connect(){
+		if(!connecting.compareAndSet(false, true)){
+			return;
+		}
+		Thread connector = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					Connection c = connection;
+					if(c == null || c.broken){
+						connection = new Connection();
+					}
+					connecting.set(false);
+				}catch(IOException e){
+					reconnectAt = System.currentTimeMillis() + RECONNECT_DELAY;
+					log.error("Could not connect to " + host + ":" + port + ": " + e.getMessage());
+					//a command queued after this is failed below, or connects again itself
+					connecting.set(false);
+					failQueued(new JedisConnectionException("Could not connect to " + host + ":" + port, e));
+				}
+			}
+		}, "RedisMultiplexedConnection-" + host + ":" + port + "-connect");
+		connector.setDaemon(true);
+		connector.start();
+	}
+	
+	private void failQueued(Throwable t){
+		Command command;
+		while((command = queue.poll()) != null){
+			command.fail(t);
+		}
+	}
+	
+	public void close(){
+		closed = true;
+		Connection c = connection;
+		if(c != null){
+			c.fail(new JedisConnectionException("Connection to " + host + ":" + port + " is closed"));
+		}
+		failQueued(new JedisConnectionException("Connection to " + host + ":" + port + " is closed"));
+	}
+	
+	/**
+	 * A command, or a batch of commands that must be written back to back
+	 */
+	private static final class Command {
+		private final List<byte[][]> args;
+		//the reply of a single command
+		private final CompletableFuture<Object> reply;
+		//the replies of a batch
+		private final CompletableFuture<List<Object>> batchReplies;
+		private final List<Object> replies;
+		
+		Command(byte[][] args){
+			this.args = new ArrayList<byte[][]>(1);
+			this.args.add(args);
+			this.reply = new CompletableFuture<Object>();
+			this.batchReplies = null;
+			this.replies = null;
+		}
+		
+		Command(List<byte[][]> args){
+			this.args = args;
+			this.reply = null;
+			this.batchReplies = new CompletableFuture<List<Object>>();
+			this.replies = new ArrayList<Object>(args.size());
+		}
+		
+		int size(){
+			return args.size();
+		}
+		
+		/**
+		 * @return true once all replies are in
+		 */
+		boolean complete(Object value, boolean error){
+			if(reply != null){
+				if(error){
+					reply.completeExceptionally(new JedisDataException((String) value));
+				}else{
+					reply.complete(value);
+				}
+				return true;
+			}
+			//errors inside a batch (like a failed command inside MULTI) are part of the replies
+			replies.add(error ? new JedisDataException((String) value) : value);
+			if(replies.size() == args.size()){
+				batchReplies.complete(replies);
+				return true;
+			}
+			return false;
+		}
+		
+		void fail(Throwable t){
+			if(reply != null){
+				reply.completeExceptionally(t);
+			}else{
+				batchReplies.completeExceptionally(t);
+			}
+		}
+	}
+	
+	/**
+	 * One socket with its writer and reader thread
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final InputStream in;
+		//commands written and waiting for their replies, in order
+		private final Queue<Command> pending = new ConcurrentLinkedQueue<Command>();
+		private final Thread writer;
+		private ByteBuffer buffer;
+		private volatile boolean broken = false;
+		
+		Connection() throws IOException{
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+			in = new BufferedInputStream(channel.socket().getInputStream(), WRITE_BUFFER_SIZE);
+			buffer = allocate(WRITE_BUFFER_SIZE);
+			String name = "RedisMultiplexedConnection-" + host + ":" + port;
+			writer = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					write();
+				}
+			}, name + "-writer");
+			writer.setDaemon(true);
+			writer.start();
+			Thread reader = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					read();
+				}
+			}, name + "-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		private ByteBuffer allocate(int size){
+			return directBuffers ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		
+		private void write(){
+			List<Command> batch = new ArrayList<Command>();
+			try{
+				while(!broken){
+					Command first = queue.take();
+					if(broken){
+						//not ours to send, the next connection picks it up
+						if(!queue.offer(first)){
+							first.fail(new JedisConnectionException("Too many commands queued for " + host + ":" + port));
+						}
+						break;
+					}
+					batch.add(first);
+					//everything that queued up meanwhile goes out in the same write
+					queue.drainTo(batch);
+					buffer.clear();
+					for(Command command : batch){
+						for(byte[][] args : command.args){
+							encode(args);
+						}
+						pending.add(command);
+					}
+					buffer.flip();
+					while(buffer.hasRemaining()){
+						channel.write(buffer);
+					}
+					batch.clear();
+				}
+			}catch(InterruptedException e){
+				//interrupted by fail(), whatever is still queued goes out on the next connection
+			}catch(Exception e){
+				for(Command command : batch){
+					if(!pending.contains(command)){
+						command.fail(e);
+					}
+				}
+				fail(e);
+			}
+		}
+		
+		private void encode(byte[][] args){
+			int size = 16;
+			for(byte[] arg : args){
+				size += arg.length + 16;
+			}
+			ensureCapacity(size);
+			buffer.put((byte) '*');
+			putNumber(args.length);
+			for(byte[] arg : args){
+				buffer.put((byte) '$');
+				putNumber(arg.length);
+				buffer.put(arg);
+				buffer.put(CRLF);
+			}
+		}
+		
+		private void putNumber(int n){
+			buffer.put(Integer.toString(n).getBytes());
+			buffer.put(CRLF);
+		}
+		
+		private void ensureCapacity(int size){
+			if(buffer.remaining() < size){
+				ByteBuffer bigger = allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+		}
+		
+		private void read(){
+			try{
+				while(!broken){
+					int type = in.read();
+					if(type == -1){
+						throw new EOFException("Connection closed by Redis");
+					}
+					Object value = readReply(type);
+					Command command = pending.peek();
+					if(command == null){
+						throw new IOException("Reply without a command");
+					}
+					if(command.complete(value, type == '-')){
+						pending.poll();
+					}
+				}
+			}catch(Exception e){
+				fail(e);
+			}
+		}
+		
+		private Object readReply(int type) throws IOException{
+			switch(type){
+				case '+':
+				case '-':
+					return readLine();
+				case ':':
+					return Long.parseLong(readLine());
+				case '$':
+					int length = Integer.parseInt(readLine());
+					if(length < 0){
+						return null;
+					}
+					byte[] data = new byte[length];
+					int read = 0;
+					while(read < length){
+						int n = in.read(data, read, length - read);
+						if(n == -1){
+							throw new EOFException("Connection closed by Redis");
+						}
+						read += n;
+					}
+					//CRLF
+					in.read();
+					in.read();
+					return data;
+				case '*':
+					int count = Integer.parseInt(readLine());
+					if(count < 0){
+						return null;
+					}
+					List<Object> values = new ArrayList<Object>(count);
+					for(int i = 0; i < count; i++){
+						int elementType = in.read();
+						Object element = readReply(elementType);
+						values.add(elementType == '-' ? new JedisDataException((String) element) : element);
+					}
+					return values;
+				default:
+					throw new IOException("Unknown reply type " + (char) type);
+			}
+		}
+		
+		private String readLine() throws IOException{
+			StringBuilder line = new StringBuilder();
+			int c;
+			while((c = in.read()) != '\r'){
+				if(c == -1){
+					throw new EOFException("Connection closed by Redis");
+				}
+				line.append((char) c);
+			}
+			in.read();
+			return line.toString();
+		}
+		
+		/**
+		 * Fails every command waiting for a reply and closes the socket
+		 */
+		void fail(Throwable t){
+			if(broken){
+				return;
+			}
+			broken = true;
+			if(!closed){
+				log.error("Connection to " + host + ":" + port + " failed: " + t.getMessage());
+			}
+			try{
+				channel.close();
+			}catch(IOException e){
+				//closing anyway
+			}
+			Command command;
+			while((command = pending.poll()) != null){
+				command.fail(t instanceof JedisConnectionException ? t : new JedisConnectionException(t));
+			}
+			//wake up the writer so it stops taking commands
+			writer.interrupt();
+			if(!closed && !queue.isEmpty()){
+				//the commands that queued up behind the failure go out on a new connection
+				connect();
+			}
+		}
+	}
+}
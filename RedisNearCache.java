@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded local copy of values read from Redis, evicted least recently used first once the
+ * values add up to more than the maximum number of bytes.
+ * <p>
+ * Every invalidation gets a stamp from a counter. A reader takes a stamp with {@link #stamp()}
+ * before it goes to Redis and {@link #put(String, byte[], long)} drops the value it read if the key
+ * was invalidated since, so a read racing a write never puts the old value back.
+ * <p>
+ * Values of hash fields are kept under {@link #fieldKey(String, String)}, invalidating the hash
+ * invalidates all of its fields.
+ */
+public class RedisNearCache {
+	//separates the hash key from the field in the key of a hash field
+	private static final char FIELD_SEPARATOR = '\u0000';
+	//number of invalidation stamps remembered, older invalidations count as happening at the oldest remembered one
+	private static final int MAX_INVALIDATIONS = 10000;
+	
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final AtomicLong clock = new AtomicLong();
+	
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	//the cached fields of every hash, to invalidate them along with the hash
+	private final Map<String, Set<String>> hashFields = new LinkedHashMap<String, Set<String>>();
+	private final LinkedHashMap<String, Long> invalidations = new LinkedHashMap<String, Long>(){
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest){
+			if(size() > MAX_INVALIDATIONS){
+				floor = Math.max(floor, eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+	//reads stamped before this can't tell whether their key was invalidated
+	private long floor = 0;
+	private long bytes = 0;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param maxBytes the most bytes of values kept
+	 * @param maxAgeSeconds how long a value is used before it is read again, this bounds how long
+	 * a value can outlive a missed invalidation or an expiry in Redis
+	 */
+	public RedisNearCache(long maxBytes, int maxAgeSeconds){
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeSeconds * 1000L;
+	}
+	
+	/**
+	 * @param key
+	 * @param field
+	 * @return the key a hash field is cached under
+	 */
+	public static String fieldKey(String key, String field){
+		return key + FIELD_SEPARATOR + field;
+	}
+	
+	/**
+	 * @param key a key or the key of a hash field
+	 * @return the key, or the hash of a hash field
+	 */
+	public static String keyOf(String key){
+		int separator = key.indexOf(FIELD_SEPARATOR);
+		return separator < 0 ? key : key.substring(0, separator);
+	}
+	
+	/**
+	 * @param fieldKey the key of a hash field
+	 * @return the field, or null for a plain key
+	 */
+	public static String fieldOf(String fieldKey){
+		int separator = fieldKey.indexOf(FIELD_SEPARATOR);
+		return separator < 0 ? null : fieldKey.substring(separator + 1);
+	}
+	
+	/**
+	 * @return the stamp to pass to {@link #put(String, byte[], long)}, take it before reading from Redis
+	 */
+	public long stamp(){
+		return clock.get();
+	}
+	
+	/**
+	 * @param key
+	 * @return the cached value, or null if it isn't cached
+	 */
+	public synchronized byte[] get(String key){
+		Entry entry = entries.get(key);
+		if(entry != null && System.currentTimeMillis() - entry.created > maxAgeMillis){
+			remove(key);
+			entry = null;
+		}
+		if(entry == null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+	
+	/**
+	 * Caches a value read from Redis, unless the key was invalidated after the stamp was taken
+	 * @param key
+	 * @param value null is not cached
+	 * @param stamp taken with {@link #stamp()} before the value was read
+	 */
+	public synchronized void put(String key, byte[] value, long stamp){
+		if(value == null || value.length > maxBytes || isInvalidatedSince(key, stamp)){
+			return;
+		}
+		int separator = key.indexOf(FIELD_SEPARATOR);
+		if(separator >= 0 && isInvalidatedSince(key.substring(0, separator), stamp)){
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(value));
+		bytes += value.length;
+		if(separator >= 0){
+			String hashKey = key.substring(0, separator);
+			Set<String> fields = hashFields.get(hashKey);
+			if(fields == null){
+				fields = new HashSet<String>();
+				hashFields.put(hashKey, fields);
+			}
+			fields.add(key);
+		}
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while(bytes > maxBytes && eldest.hasNext()){
+			Map.Entry<String, Entry> e = eldest.next();
+			eldest.remove();
+			bytes -= e.getValue().value.length;
+			removeField(e.getKey());
+		}
+	}
+	
+	private boolean isInvalidatedSince(String key, long stamp){
+		if(stamp < floor){
+			return true;
+		}
+		Long invalidated = invalidations.get(key);
+		return invalidated != null && invalidated > stamp;
+	}
+	
+	/**
+	 * Drops the key, or the hash and all of its fields
+	 * @param key
+	 */
+	public synchronized void invalidate(String key){
+		invalidations.put(key, clock.incrementAndGet());
+		remove(key);
+		Set<String> fields = hashFields.remove(key);
+		if(fields != null){
+			for(String field : fields){
+				Entry entry = entries.remove(field);
+				if(entry != null){
+					bytes -= entry.value.length;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Drops everything, like when invalidations may have been missed
+	 */
+	public synchronized void invalidateAll(){
+		floor = clock.incrementAndGet();
+		invalidations.clear();
+		entries.clear();
+		hashFields.clear();
+		bytes = 0;
+	}
+	
+	private void remove(String key){
+		Entry entry = entries.remove(key);
+		if(entry != null){
+			bytes -= entry.value.length;
+			removeField(key);
+		}
+	}
+	
+	private void removeField(String key){
+		int separator = key.indexOf(FIELD_SEPARATOR);
+		if(separator >= 0){
+			String hashKey = key.substring(0, separator);
+			Set<String> fields = hashFields.get(hashKey);
+			if(fields != null){
+				fields.remove(key);
+				if(fields.isEmpty()){
+					hashFields.remove(hashKey);
+				}
+			}
+		}
+	}
+	
+	public long getHits(){
+		return hits.get();
+	}
+	
+	public long getMisses(){
+		return misses.get();
+	}
+	
+	public synchronized long getBytes(){
+		return bytes;
+	}
+	
+	private static final class Entry {
+		private final byte[] value;
+		private final long created = System.currentTimeMillis();
+		
+		Entry(byte[] value){
+			this.value = value;
+		}
+	}
+}
@@ -69,7 +69,18 @@ public class RedisPageManagerProvider implements IPageManagerProvider {
 
 	protected IDataStore newDataStore()
 	{
-		return new RedisMemoryStore();
+		RedisMemoryStore dataStore = new RedisMemoryStore(newPayloadCompressor());
+		// same budget as the DiskDataStore would have
+		dataStore.setMaxBytesPerSession(getStoreSettings().getMaxSizePerSession().bytes());
+		return dataStore;
+	}
+
+	/**
+	 * @return the compressor for the stored pages, or null to store them uncompressed
+	 */
+	protected RedisPayloadCompressor newPayloadCompressor()
+	{
+		return null;
 	}
 
 	IStoreSettings getStoreSettings()
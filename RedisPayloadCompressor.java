@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compresses page and session payloads before they go to Redis.
+ * <p>
+ * Every payload written starts with a one byte codec marker, so reads pick the right decoder
+ * on their own, see {@link #decode(byte[])}. Payloads smaller than the threshold, or that don't get smaller, are stored as
+ * they are behind {@link #CODEC_NONE}. The bytes going in and coming out are counted so the
+ * savings can be checked.
+ */
+public class RedisPayloadCompressor {
+	private static final Log log = LogFactory.getLog(RedisPayloadCompressor.class);
+	
+	public static final byte CODEC_NONE = 0;
+	public static final byte CODEC_DEFLATE = 1;
+	//marker plus the uncompressed length
+	private static final int DEFLATE_HEADER = 5;
+	
+	private final int threshold;
+	private final int level;
+	
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong uncompressed = new AtomicLong();
+	
+	//Deflater/Inflater hold native memory, so reuse them per thread
+	private final ThreadLocal<Deflater> deflaters;
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue(){
+			return new Inflater();
+		}
+	};
+	
+	/**
+	 * Compresses payloads of at least 1KB with the fastest Deflate level
+	 */
+	public RedisPayloadCompressor(){
+		this(1024, Deflater.BEST_SPEED);
+	}
+	
+	/**
+	 * @param threshold payloads smaller than this many bytes are not compressed
+	 * @param level the Deflate level, see {@link Deflater}
+	 */
+	public RedisPayloadCompressor(int threshold, final int level){
+		this.threshold = threshold;
+		this.level = level;
+		deflaters = new ThreadLocal<Deflater>(){
+			@Override
+			protected Deflater initialValue(){
+				return new Deflater(level);
+			}
+		};
+	}
+	
+	/**
+	 * @param data
+	 * @return the payload to store, starting with its codec marker
+	 */
+	public byte[] compress(byte[] data){
+		return compress(data, 0, data.length);
+	}
+	
+	/**
+	 * Compresses part of an array, so a {@link RedisBufferPool} buffer can be compressed in place
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return the payload to store, starting with its codec marker
+	 */
+	public byte[] compress(byte[] data, int offset, int length){
+		byte[] out = null;
+		if(length >= threshold && length > DEFLATE_HEADER){
+			out = deflate(data, offset, length);
+		}
+		if(out == null){
+			out = new byte[length + 1];
+			out[0] = CODEC_NONE;
+			System.arraycopy(data, offset, out, 1, length);
+			uncompressed.incrementAndGet();
+		}else{
+			compressed.incrementAndGet();
+		}
+		bytesIn.addAndGet(length);
+		bytesOut.addAndGet(out.length);
+		return out;
+	}
+	
+	/**
+	 * @param data a payload written by {@link #compress(byte[])}
+	 * @return the original bytes
+	 * @throws IOException if the payload is corrupt or uses an unknown codec
+	 * @see #decode(byte[])
+	 */
+	public byte[] decompress(byte[] data) throws IOException{
+		return decode(data);
+	}
+	
+	/**
+	 * @param data
+	 * @return the payload to store uncompressed, behind {@link #CODEC_NONE}
+	 */
+	public static byte[] mark(byte[] data){
+		byte[] out = new byte[data.length + 1];
+		out[0] = CODEC_NONE;
+		System.arraycopy(data, 0, out, 1, data.length);
+		return out;
+	}
+	
+	/**
+	 * Reads a stored payload whether compression is on or not, so payloads written before compression
+	 * was turned on or off stay readable. Payloads without a codec marker, like the Java serialization
+	 * streams stored before there were markers, are returned as they are. So only decode payloads that
+	 * are either marked or start with a byte that is no codec marker, which Java serialization never does.
+	 * @param data
+	 * @return the original bytes
+	 * @throws IOException if the payload is corrupt
+	 */
+	public static byte[] decode(byte[] data) throws IOException{
+		if(data == null || data.length == 0){
+			return data;
+		}
+		switch(data[0]){
+			case CODEC_NONE:
+				byte[] out = new byte[data.length - 1];
+				System.arraycopy(data, 1, out, 0, out.length);
+				return out;
+			case CODEC_DEFLATE:
+				return inflate(data);
+			default:
+				return data;
+		}
+	}
+	
+	private byte[] deflate(byte[] data, int offset, int length){
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		//only worth it if it gets smaller
+		byte[] out = RedisBufferPool.acquire(length);
+		try{
+			out[0] = CODEC_DEFLATE;
+			writeInt(out, 1, length);
+			int written = DEFLATE_HEADER;
+			while(!deflater.finished()){
+				if(written >= length){
+					return null;
+				}
+				written += deflater.deflate(out, written, length - written);
+			}
+			return Arrays.copyOf(out, written);
+		}finally{
+			RedisBufferPool.release(out);
+		}
+	}
+	
+	private static byte[] inflate(byte[] data) throws IOException{
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, DEFLATE_HEADER, data.length - DEFLATE_HEADER);
+		byte[] out = new byte[readInt(data, 1)];
+		try{
+			int length = 0;
+			while(length < out.length && !inflater.finished()){
+				int n = inflater.inflate(out, length, out.length - length);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					break;
+				}
+				length += n;
+			}
+			if(length != out.length){
+				throw new IOException("Truncated payload, expected " + out.length + " bytes but got " + length);
+			}
+		}catch(DataFormatException e){
+			throw new IOException(e.getMessage(), e);
+		}
+		return out;
+	}
+	
+	private static void writeInt(byte[] b, int offset, int value){
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+	
+	private static int readInt(byte[] b, int offset){
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+			| ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+	
+	/**
+	 * @return total size of the payloads passed to {@link #compress(byte[])}
+	 */
+	public long getBytesIn(){
+		return bytesIn.get();
+	}
+	
+	/**
+	 * @return total size of the payloads {@link #compress(byte[])} returned
+	 */
+	public long getBytesOut(){
+		return bytesOut.get();
+	}
+	
+	public long getCompressedCount(){
+		return compressed.get();
+	}
+	
+	public long getUncompressedCount(){
+		return uncompressed.get();
+	}
+	
+	public int getThreshold(){
+		return threshold;
+	}
+	
+	public int getLevel(){
+		return level;
+	}
+	
+	public void logStatistics(){
+		long in = bytesIn.get();
+		long out = bytesOut.get();
+		log.info("Payload compression: " + in + " bytes in, " + out + " bytes out ("
+			+ (in > 0 ? (100 * out / in) : 100) + "%), " + compressed.get() + " compressed, "
+			+ uncompressed.get() + " stored as is");
+	}
+	
+	@Override
+	public String toString(){
+		return "RedisPayloadCompressor[threshold=" + threshold + ", level=" + level
+			+ ", bytesIn=" + bytesIn.get() + ", bytesOut=" + bytesOut.get() + "]";
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManagerBase;
+import org.apache.catalina.session.StandardSession;
+
+/**
+ * A PersistentManager that saves all sessions at once when Tomcat stops with saveOnRestart, through
+ * {@link CatalinaRedisSessionStore#saveAll(java.util.Collection)}, instead of one round trip per session.
+ * With preloadOnStart it also reads all stored sessions at once when it starts.
+ * Use it with a CatalinaRedisSessionStore, it works like PersistentManager with any other store.
+ */
+public class RedisPersistentManager extends PersistentManagerBase {
+	
+	private static final String NAME = "RedisPersistentManager";
+	private boolean preloadOnStart = false;
+	
+	@Override
+	public String getInfo(){
+		return NAME + "/1.0";
+	}
+	
+	@Override
+	public String getName(){
+		return NAME;
+	}
+	
+	public boolean isPreloadOnStart(){
+		return preloadOnStart;
+	}
+	
+	/**
+	 * Loads all stored sessions when the manager starts, rather than when they are first used. Meant for
+	 * a node that takes over the sessions of a node that is drained or restarted. The sessions of all nodes
+	 * share the store, so a node with this on holds all of them in memory until they are swapped out.
+	 * @param preloadOnStart
+	 */
+	public void setPreloadOnStart(boolean preloadOnStart){
+		this.preloadOnStart = preloadOnStart;
+	}
+	
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		super.startInternal();
+		if(preloadOnStart){
+			load();
+		}
+	}
+	
+	/**
+	 * Reads the sessions in parallel batches first, then swaps them in as PersistentManager does
+	 */
+	@Override
+	public void load() {
+		if(!(getStore() instanceof CatalinaRedisSessionStore)){
+			super.load();
+			return;
+		}
+		CatalinaRedisSessionStore store = (CatalinaRedisSessionStore) getStore();
+		try{
+			long start = System.currentTimeMillis();
+			int count = store.preload(store.keys());
+			getContainer().getLogger().info("Preloaded " + count + " sessions in " + (System.currentTimeMillis() - start) + "ms");
+			super.load();
+		}catch(IOException e){
+			getContainer().getLogger().error("Could not preload the sessions", e);
+		}finally{
+			store.clearPreloaded();
+		}
+	}
+	
+	/**
+	 * Swaps out the session like PersistentManager does, and lets the store forget what it kept about it
+	 */
+	@Override
+	protected void swapOut(Session session) throws IOException {
+		String id = session.getIdInternal();
+		super.swapOut(session);
+		if(getStore() instanceof CatalinaRedisSessionStore){
+			((CatalinaRedisSessionStore) getStore()).swappedOut(id);
+		}
+	}
+	
+	/**
+	 * Swaps out all sessions like PersistentManager does, but saves them in parallel batches
+	 */
+	@Override
+	public void unload() {
+		if(!(getStore() instanceof CatalinaRedisSessionStore)){
+			super.unload();
+			return;
+		}
+		List<Session> sessions = new ArrayList<Session>();
+		for(Session session : findSessions()){
+			if(session.isValid()){
+				((StandardSession) session).passivate();
+				sessions.add(session);
+			}
+		}
+		if(sessions.isEmpty()){
+			return;
+		}
+		long start = System.currentTimeMillis();
+		((CatalinaRedisSessionStore) getStore()).saveAll(sessions);
+		getContainer().getLogger().info("Saved " + sessions.size() + " sessions in " + (System.currentTimeMillis() - start) + "ms");
+		for(Session session : sessions){
+			((CatalinaRedisSessionStore) getStore()).swappedOut(session.getIdInternal());
+			removeSuper(session);
+			session.recycle();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Tells whether a key can be read from the replica without missing a write made through this node.
+ * <p>
+ * Every interval the master's replication offset is sampled, then the replica's. A sample taken
+ * after a write includes it, so once the replica's offset reaches that sample it has the write.
+ * The time of the newest sample the replica has reached is the caught up time: keys last written
+ * before it are safe to read from the replica, keys written after it are read from the master.
+ * <p>
+ * Only the writes made through this node are known. When a session fails over to another node,
+ * the first reads of that node may still come from a replica that hasn't received the previous
+ * node's last writes; sticky load balancing keeps this to failovers.
+ */
+public class RedisReplicationMonitor {
+	private static final Log log = LogFactory.getLog(RedisReplicationMonitor.class);
+	//most keys remembered as written, older ones count as written at the time they are dropped
+	private static final int MAX_WRITES = 100000;
+	//most samples kept while the replica lags behind
+	private static final int MAX_SAMPLES = 1000;
+	
+	private final JedisPool masterPool, replicaPool;
+	private final ScheduledExecutorService executor;
+	
+	//time of the last write, by key, oldest first
+	private final LinkedHashMap<String, Long> writes = new LinkedHashMap<String, Long>();
+	//writes dropped from the map happened before this
+	private long droppedUntil = 0;
+	//master offset samples {time, offset} the replica hasn't reached yet
+	private final Deque<long[]> samples = new ArrayDeque<long[]>();
+	private volatile long caughtUpTime = 0;
+	
+	/**
+	 * @param masterPool
+	 * @param replicaPool
+	 * @param intervalMillis how often the offsets are sampled, the longest a key is read from the master after a write
+	 */
+	public RedisReplicationMonitor(JedisPool masterPool, JedisPool replicaPool, long intervalMillis){
+		this.masterPool = masterPool;
+		this.replicaPool = replicaPool;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "RedisReplicationMonitor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable(){
+			@Override
+			public void run(){
+				sample();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Records that the keys were written, call once the write is done
+	 * @param keys
+	 */
+	public void written(Collection<String> keys){
+		long now = System.currentTimeMillis();
+		synchronized(writes){
+			for(String key : keys){
+				//keep the map in write order
+				writes.remove(key);
+				writes.put(key, now);
+			}
+			Iterator<Long> eldest = writes.values().iterator();
+			while(writes.size() > MAX_WRITES){
+				droppedUntil = Math.max(droppedUntil, eldest.next());
+				eldest.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return whether the replica has every write made to the key through this node
+	 */
+	public boolean isReplicaCurrent(String key){
+		long caughtUp = caughtUpTime;
+		synchronized(writes){
+			Long written = writes.get(key);
+			if(written == null){
+				return droppedUntil < caughtUp;
+			}
+			return written < caughtUp;
+		}
+	}
+	
+	private void sample(){
+		try{
+			//the time is taken before asking, so the sample includes every write recorded before it
+			long time = System.currentTimeMillis();
+			long masterOffset = readOffset(masterPool, "master_repl_offset");
+			long replicaOffset = readOffset(replicaPool, "slave_repl_offset");
+			if(samples.size() == MAX_SAMPLES){
+				samples.removeFirst();
+			}
+			samples.addLast(new long[]{time, masterOffset});
+			long caughtUp = caughtUpTime;
+			while(!samples.isEmpty() && samples.peekFirst()[1] <= replicaOffset){
+				caughtUp = samples.removeFirst()[0];
+			}
+			caughtUpTime = caughtUp;
+			pruneWrites(caughtUp);
+		}catch(Exception e){
+			//leave the caught up time where it is, reads of recent writes keep going to the master
+			log.warn("Could not read the replication offsets: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Forgets writes the replica has, they are safe to read from it now
+	 */
+	private void pruneWrites(long caughtUp){
+		synchronized(writes){
+			Iterator<Long> eldest = writes.values().iterator();
+			while(eldest.hasNext() && eldest.next() < caughtUp){
+				eldest.remove();
+			}
+		}
+	}
+	
+	private static long readOffset(JedisPool pool, String field){
+		Jedis jedis = null;
+		try{
+			jedis = pool.getResource();
+			for(String line : jedis.info("replication").split("\r\n")){
+				if(line.startsWith(field + ":")){
+					return Long.parseLong(line.substring(field.length() + 1).trim());
+				}
+			}
+			throw new IllegalStateException(field + " missing from INFO replication");
+		}finally{
+			if(jedis != null){
+				pool.returnResource(jedis);
+			}
+		}
+	}
+	
+	public long getCaughtUpTime(){
+		return caughtUpTime;
+	}
+	
+	public void destroy(){
+		executor.shutdownNow();
+	}
+}
@@ -18,10 +18,15 @@
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -30,9 +35,12 @@ import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.Session;
 import org.apache.wicket.protocol.http.IRequestLogger;
 import org.apache.wicket.request.Request;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.session.HttpSessionStore;
 import org.apache.wicket.session.ISessionStore;
 import org.slf4j.Logger;
@@ -44,17 +52,117 @@ public class RedisSessionStore implements ISessionStore {
 	private final Set<UnboundListener> unboundListeners = new CopyOnWriteArraySet<UnboundListener>();
 	private final Set<BindListener> bindListeners = new CopyOnWriteArraySet<BindListener>();
 	public static final String KEY_PREFIX_SESSION = "SESSION";
+	public static final String KEY_PREFIX_INDEX = "SESSIONINDEX";
+	public static final String KEY_PREFIX_HASH = "SESSIONHASH";
 	public static final String KEY_PREFIX_DIVIDER = "-";
 	public static final String KEY_MAP = "keymap";
 	public static final String KEY_REDIS_SESSION = "redis_session";
 	private RedisCache redisCache;
+	private final StorageLayout layout;
+	//the attributes are written with it, and read with it when they are of its format
+	private volatile IRedisSerializer serializer;
+	//buffer attribute writes until the end of the request
+	private volatile boolean writeBehind = true;
+	//sessions are refreshed at most once per this many seconds
+	private static final int EXPIRY_REFRESH_INTERVAL = 60;
+	private final RedisExpiryRefresher expiryRefresher;
+	//timeout for sessions written without an http session, should match the session-timeout in web.xml
+	private volatile int defaultSessionTimeout = 30 * 60;
+	
+	//what a mapped session id may look like, anything else in a keymap key is not followed
+	private static final int MAX_SESSION_ID_LENGTH = 128;
+	private static final Pattern SESSION_ID = Pattern.compile("[A-Za-z0-9._-]{1," + MAX_SESSION_ID_LENGTH + "}");
+	/**
+	 * Resolves the origin session id of a passed in session id and maps this server's session id
+	 * straight to it. Mappings always point at the origin, so one hop is all there is to follow.
+	 * A mapping that is not a plain session id, like one serialized by an older version, is ignored.
+	 * KEYS[1] = keymap key of the passed in id, KEYS[2] = keymap key of this server's id,
+	 * ARGV[1] = passed in id, ARGV[2] = max session id length,
+	 * ARGV[3] = seconds this server's mapping expires in, 0 for never.
+	 */
+	private static final String RESOLVE_KEY_MAP_SCRIPT =
+		"local root = ARGV[1] " +
+		"local mapped = redis.call('GET', KEYS[1]) " +
+		"if mapped and #mapped <= tonumber(ARGV[2]) and string.find(mapped, '^[%w%._%-]+$') then root = mapped end " +
+		"if tonumber(ARGV[3]) > 0 then redis.call('SET', KEYS[2], root, 'EX', ARGV[3]) " +
+		"else redis.call('SET', KEYS[2], root) end " +
+		"return root";
+	
+	//how many server session id to origin session id mappings are kept locally
+	private static final int MAX_ORIGIN_SESSION_IDS = 10000;
+	private final Map<String, String> originSessionIds = Collections.synchronizedMap(
+		new LinkedHashMap<String, String>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > MAX_ORIGIN_SESSION_IDS;
+			}
+		});
+	
+	/** The session key prefix resolved for the current request */
+	private static final MetaDataKey<String> KEY_PREFIX = new MetaDataKey<String>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+	
+	/** The Wicket Session deserialized or bound during the current request */
+	private static final MetaDataKey<Session> WICKET_SESSION = new MetaDataKey<Session>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+	
+	/** The serialized Wicket Session as it is currently stored in Redis, to detect changes */
+	private static final MetaDataKey<byte[]> WICKET_SESSION_DATA = new MetaDataKey<byte[]>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+	
+	/** The Wicket Session fetched ahead of time, while the session id was still being resolved */
+	private static final MetaDataKey<SpeculativeRead> SPECULATIVE_SESSION = new MetaDataKey<SpeculativeRead>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+	
+	/** Attribute writes made during the current request, flushed once when the request cycle detaches */
+	private static final MetaDataKey<AttributeBuffer> ATTRIBUTE_BUFFER = new MetaDataKey<AttributeBuffer>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/**
+	 * How the attributes of a session are laid out in Redis
+	 */
+	public static enum StorageLayout {
+		/** every attribute is its own top level key, <code>SESSION-&lt;id&gt;-&lt;name&gt;</code> */
+		KEY_PER_ATTRIBUTE,
+		/** every session is one hash, <code>SESSIONHASH-&lt;id&gt;-</code>, with one field per attribute */
+		HASH_PER_SESSION
+	}
 
 	public RedisSessionStore(){
-		redisCache = new RedisCache();
-		redisCache.init();
+		this(StorageLayout.KEY_PER_ATTRIBUTE);
+	}
+	
+	public RedisSessionStore(StorageLayout layout){
+		this.layout = layout;
+		//shared with the other stores, so the attributes are serialized here with a serializer of our own
+		redisCache = RedisCacheRegistry.acquire();
+		serializer = new WicketRedisSerializer();
+		expiryRefresher = new RedisExpiryRefresher(redisCache, EXPIRY_REFRESH_INTERVAL);
 	}
 	
 	private String getKeyPrevix(Request request, boolean create){
+		//the prefix doesn't change during a request, so only resolve it once
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle != null){
+			String prefix = cycle.getMetaData(KEY_PREFIX);
+			if(prefix != null){
+				return prefix;
+			}
+		}
 		//redis session id gets stored in the session attribute
 		String sessionId = null;
 		HttpSession httpSession = getHttpSession(request, false);
@@ -68,25 +176,370 @@ public class RedisSessionStore implements ISessionStore {
 			//Redis session id doesn't exist, look it up based on the id
 			sessionId = getSessionId(request, create);
 			if(sessionId != null){
-				Object o = redisCache.getCacheObject(getKeyMapKey(sessionId.toString()));
-				if(o != null){
-					sessionId = (String) o;
-				}
+				sessionId = getOriginSessionId(sessionId);
 			}
 		}
 		if(sessionId != null){
-			return KEY_PREFIX_SESSION + KEY_PREFIX_DIVIDER + sessionId + KEY_PREFIX_DIVIDER;
+			String prefix = getSessionPrefix(sessionId);
+			if(cycle != null){
+				cycle.setMetaData(KEY_PREFIX, prefix);
+			}
+			touchSession(request, prefix);
+			return prefix;
 		}else{
 			return null;
 		}
 	}
-	private String getKey(Request request, String name, boolean create){
-		String prefix = getKeyPrevix(request, create);
-		if(prefix != null){
-			return prefix + name;
+	
+	/**
+	 * @param sessionId the origin session id
+	 * @return the prefix of the session's keys, the id is hash tagged when sharded so
+	 * all keys of a session live on the same shard
+	 */
+	private String getSessionPrefix(String sessionId){
+		return KEY_PREFIX_SESSION + KEY_PREFIX_DIVIDER + redisCache.tagged(sessionId) + KEY_PREFIX_DIVIDER;
+	}
+	
+	/**
+	 * Maps this server's session id to the id the session was originally created with
+	 * @param sessionId
+	 * @return the origin session id, or the passed in id if it isn't mapped
+	 */
+	private String getOriginSessionId(String sessionId){
+		String originId = originSessionIds.get(sessionId);
+		if(originId == null){
+			originId = getMapped(sessionId);
+			originSessionIds.put(sessionId, originId);
+		}
+		return originId;
+	}
+	
+	/**
+	 * @param keyPrefix the session key prefix
+	 * @return the key of the index holding all attribute keys of the session
+	 */
+	private String getIndexKey(String keyPrefix){
+		return KEY_PREFIX_INDEX + keyPrefix.substring(KEY_PREFIX_SESSION.length());
+	}
+	
+	/**
+	 * @param keyPrefix the session key prefix
+	 * @return the key of the hash holding all attributes of the session
+	 */
+	private String getHashKey(String keyPrefix){
+		return KEY_PREFIX_HASH + keyPrefix.substring(KEY_PREFIX_SESSION.length());
+	}
+	
+	private Object readAttribute(String keyPrefix, String name){
+		return redisCache.deserialize(readAttributeBytes(keyPrefix, name), serializer);
+	}
+	
+	private byte[] readAttributeBytes(String keyPrefix, String name){
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			return redisCache.getHashBytes(getHashKey(keyPrefix), name);
+		}
+		return redisCache.getBytes(keyPrefix + name);
+	}
+	
+	private CompletableFuture<byte[]> readAttributeBytesAsync(String keyPrefix, String name){
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			return redisCache.getHashBytesAsync(getHashKey(keyPrefix), name);
+		}
+		return redisCache.getBytesAsync(keyPrefix + name);
+	}
+	
+	private void writeAttributeBytes(String keyPrefix, String name, byte[] data, int expireSeconds){
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			redisCache.storeHashBytes(getHashKey(keyPrefix), name, data, expireSeconds);
+		}else{
+			redisCache.storeBytes(keyPrefix + name, data, getIndexKey(keyPrefix), expireSeconds);
+		}
+	}
+	
+	/**
+	 * @return the seconds the keys of the request's session expire in, 0 for never
+	 */
+	private int getExpireSeconds(Request request){
+		HttpSession httpSession = getHttpSession(request, false);
+		int timeout = httpSession != null ? httpSession.getMaxInactiveInterval() : defaultSessionTimeout;
+		return expiryRefresher.getExpireSeconds(timeout);
+	}
+	
+	/**
+	 * Keeps the keys of the session from expiring while it is in use
+	 */
+	private void touchSession(Request request, String keyPrefix){
+		List<String> keys = new ArrayList<String>();
+		List<String> indexKeys = new ArrayList<String>();
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			keys.add(getHashKey(keyPrefix));
 		}else{
+			indexKeys.add(getIndexKey(keyPrefix));
+		}
+		HttpSession httpSession = getHttpSession(request, false);
+		if(httpSession != null){
+			keys.add(getKeyMapKey(httpSession.getId()));
+		}
+		expiryRefresher.touch(keyPrefix, getExpireSeconds(request),
+			keys.toArray(new String[keys.size()]), indexKeys.toArray(new String[indexKeys.size()]));
+	}
+	
+	public IRedisSerializer getSerializer(){
+		return serializer;
+	}
+	
+	/**
+	 * Sets the serializer the attributes are written with, the Wicket serializer of the application by default.
+	 * Attributes of another format are read with the serializer the RedisCache has registered for it.
+	 * @param serializer
+	 */
+	public void setSerializer(IRedisSerializer serializer){
+		this.serializer = serializer;
+	}
+	
+	public int getDefaultSessionTimeout(){
+		return defaultSessionTimeout;
+	}
+	
+	/**
+	 * The timeout used for the expiry of sessions when there is no http session to take it
+	 * from. Set it to the session-timeout of web.xml, in seconds.
+	 * @param defaultSessionTimeout
+	 */
+	public void setDefaultSessionTimeout(int defaultSessionTimeout){
+		this.defaultSessionTimeout = defaultSessionTimeout;
+	}
+	
+	/**
+	 * Keeps the attributes this node reads in local memory, so requests that stick to this node
+	 * don't go to Redis for them. Writes on any node invalidate them over Redis pub/sub.
+	 * @param maxBytes the most bytes of serialized attributes kept locally
+	 */
+	public void enableNearCache(long maxBytes){
+		//attributes also expire in Redis, don't keep them much longer than the expiry refresh interval
+		redisCache.enableNearCache(maxBytes, EXPIRY_REFRESH_INTERVAL,
+			KEY_PREFIX_SESSION + KEY_PREFIX_DIVIDER, KEY_PREFIX_HASH + KEY_PREFIX_DIVIDER);
+	}
+	
+	/**
+	 * Returns the Wicket Session of the request. It is deserialized at most once per request,
+	 * so the same instance is returned to every caller and compares equal in flushSession.
+	 */
+	private Session readWicketSession(Request request, String keyPrefix){
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle != null){
+			Session session = cycle.getMetaData(WICKET_SESSION);
+			if(session != null){
+				return session;
+			}
+		}
+		byte[] data = null;
+		SpeculativeRead speculative = cycle != null ? cycle.getMetaData(SPECULATIVE_SESSION) : null;
+		if(speculative != null && speculative.keyPrefix.equals(keyPrefix)){
+			cycle.setMetaData(SPECULATIVE_SESSION, null);
+			data = speculative.data.join();
+		}else{
+			data = readAttributeBytes(keyPrefix, Session.SESSION_ATTRIBUTE_NAME);
+		}
+		Object o = redisCache.deserialize(data, serializer);
+		if(o instanceof Session){
+			if(cycle != null){
+				cycle.setMetaData(WICKET_SESSION, (Session) o);
+				cycle.setMetaData(WICKET_SESSION_DATA, data);
+			}
+			return (Session) o;
+		}
+		return null;
+	}
+	
+	/**
+	 * Writes the Wicket Session, unless its serialized form is the same as what is already stored
+	 */
+	private void writeWicketSession(Request request, String keyPrefix, Session session){
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle != null){
+			cycle.setMetaData(WICKET_SESSION, session);
+		}
+		AttributeBuffer buffer = getBuffer(request, keyPrefix);
+		if(buffer != null){
+			//written with the rest of the request, if it changed by then
+			buffer.put(Session.SESSION_ATTRIBUTE_NAME, session);
+			return;
+		}
+		byte[] data = redisCache.serialize(session, serializer);
+		if(data == null){
+			return;
+		}
+		if(cycle != null){
+			if(Arrays.equals(data, cycle.getMetaData(WICKET_SESSION_DATA))){
+				//nothing changed
+				return;
+			}
+			cycle.setMetaData(WICKET_SESSION_DATA, data);
+		}
+		writeAttributeBytes(keyPrefix, Session.SESSION_ATTRIBUTE_NAME, data, getExpireSeconds(request));
+	}
+	
+	private void forgetWicketSession(Request request){
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle != null){
+			cycle.setMetaData(WICKET_SESSION, null);
+			cycle.setMetaData(WICKET_SESSION_DATA, null);
+		}
+	}
+	
+	private void writeAttribute(String keyPrefix, String name, Serializable value, int expireSeconds){
+		byte[] data = redisCache.serialize(value, serializer);
+		if(data != null){
+			writeAttributeBytes(keyPrefix, name, data, expireSeconds);
+		}
+	}
+	
+	private void deleteAttribute(String keyPrefix, String name){
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			redisCache.deleteHashField(getHashKey(keyPrefix), name);
+		}else{
+			redisCache.deleteCacheObject(keyPrefix + name, getIndexKey(keyPrefix));
+		}
+	}
+	
+	private List<String> readAttributeNames(String keyPrefix){
+		List<String> names = new ArrayList<String>();
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			names.addAll(redisCache.getHashFields(getHashKey(keyPrefix)));
+		}else{
+			for(String key : redisCache.getIndexedKeys(getIndexKey(keyPrefix), keyPrefix)){
+				String name = key.substring(keyPrefix.length());
+				if(!KEY_MAP.equals(name)){
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Removes every attribute of the session from Redis
+	 * @param keyPrefix the session key prefix
+	 */
+	private void deleteSession(String keyPrefix){
+		if(layout == StorageLayout.HASH_PER_SESSION){
+			redisCache.deleteCacheObject(getHashKey(keyPrefix));
+		}else{
+			redisCache.clearIndexed(getIndexKey(keyPrefix), keyPrefix);
+		}
+	}
+	
+	/**
+	 * Returns the write buffer of the current request, creating it on first use. Returns
+	 * null when writes can't be buffered (no request cycle, write behind disabled, or the
+	 * request cycle is already detaching) and should go straight to Redis.
+	 */
+	private AttributeBuffer getBuffer(Request request, String keyPrefix){
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle == null || !writeBehind){
+			return null;
+		}
+		AttributeBuffer buffer = cycle.getMetaData(ATTRIBUTE_BUFFER);
+		if(buffer == null){
+			buffer = new AttributeBuffer(keyPrefix);
+			cycle.setMetaData(ATTRIBUTE_BUFFER, buffer);
+			cycle.getListeners().add(new AbstractRequestCycleListener()
+			{
+				@Override
+				public void onDetach(RequestCycle cycle)
+				{
+					AttributeBuffer buffer = cycle.getMetaData(ATTRIBUTE_BUFFER);
+					if(buffer != null){
+						flushBuffer(cycle, buffer, getExpireSeconds(cycle.getRequest()));
+						buffer.close();
+					}
+				}
+			});
+		}else if(!buffer.getKeyPrefix().equals(keyPrefix)){
+			//the session changed during the request, write out what belongs to the old one
+			flushBuffer(cycle, buffer, getExpireSeconds(request));
+			buffer.reset(keyPrefix);
+		}
+		return buffer.isClosed() ? null : buffer;
+	}
+	
+	/**
+	 * @return the write buffer of the current request if it exists and belongs to the session
+	 */
+	private AttributeBuffer peekBuffer(Request request, String keyPrefix){
+		RequestCycle cycle = getRequestCycle(request);
+		if(cycle != null && writeBehind){
+			AttributeBuffer buffer = cycle.getMetaData(ATTRIBUTE_BUFFER);
+			if(buffer != null && !buffer.isClosed() && buffer.getKeyPrefix().equals(keyPrefix)){
+				return buffer;
+			}
+		}
+		return null;
+	}
+	
+	private RequestCycle getRequestCycle(Request request){
+		RequestCycle cycle = RequestCycle.get();
+		if(cycle == null || cycle.getRequest() == null
+			|| cycle.getRequest().getContainerRequest() != request.getContainerRequest()){
 			return null;
 		}
+		return cycle;
+	}
+	
+	/**
+	 * Writes the final state of the buffered attributes in one batch. The Wicket Session is
+	 * left out if its serialized form is the same as what was read or last written.
+	 */
+	private void flushBuffer(RequestCycle cycle, AttributeBuffer buffer, int expireSeconds){
+		if(buffer.isEmpty()){
+			return;
+		}
+		String keyPrefix = buffer.getKeyPrefix();
+		Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+		List<String> removed = new ArrayList<String>();
+		boolean hash = layout == StorageLayout.HASH_PER_SESSION;
+		for(Map.Entry<String, Serializable> entry : buffer.entries()){
+			//hash fields are the attribute names, otherwise every attribute has its own key
+			String key = hash ? entry.getKey() : keyPrefix + entry.getKey();
+			if(entry.getValue() == null){
+				removed.add(key);
+				continue;
+			}
+			byte[] data = redisCache.serialize(entry.getValue(), serializer);
+			if(data == null){
+				continue;
+			}
+			if(Session.SESSION_ATTRIBUTE_NAME.equals(entry.getKey())){
+				if(Arrays.equals(data, cycle.getMetaData(WICKET_SESSION_DATA))){
+					//nothing changed
+					continue;
+				}
+				cycle.setMetaData(WICKET_SESSION_DATA, data);
+			}
+			values.put(key, data);
+		}
+		if(!values.isEmpty() || !removed.isEmpty()){
+			if(hash){
+				redisCache.writeHashBytes(getHashKey(keyPrefix), values, removed, null, expireSeconds);
+			}else{
+				redisCache.writeBatchBytes(values, removed, getIndexKey(keyPrefix), expireSeconds);
+			}
+		}
+		buffer.clear();
+	}
+	
+	public boolean isWriteBehind(){
+		return writeBehind;
+	}
+	
+	/**
+	 * Whether attribute writes are buffered per request and written once when the request
+	 * cycle detaches. When off, every set/remove goes to Redis immediately.
+	 * @param writeBehind
+	 */
+	public void setWriteBehind(boolean writeBehind){
+		this.writeBehind = writeBehind;
 	}
 	
 	@Override
@@ -125,15 +578,23 @@ public class RedisSessionStore implements ISessionStore {
 	@Override
 	public void destroy()
 	{
-		redisCache.destroy();
+		expiryRefresher.destroy();
+		RedisCacheRegistry.release(redisCache);
 	}
 
 	@Override
 	public Serializable getAttribute(Request request, String name)
 	{
-		String key = getKey(request, name, false);
-		if(key != null){
-			Object o = redisCache.getCacheObject(key);
+		String prefix = getKeyPrevix(request, false);
+		if(prefix != null){
+			AttributeBuffer buffer = peekBuffer(request, prefix);
+			if(buffer != null && buffer.contains(name)){
+				return buffer.get(name);
+			}
+			if(Session.SESSION_ATTRIBUTE_NAME.equals(name)){
+				return readWicketSession(request, prefix);
+			}
+			Object o = readAttribute(prefix, name);
 			if(o != null && o instanceof Serializable){
 				return (Serializable) o;
 			}else{
@@ -148,7 +609,22 @@ public class RedisSessionStore implements ISessionStore {
 	@Override
 	public List<String> getAttributeNames(Request request)
 	{
-		return new ArrayList<String>(redisCache.getCachedKeys(getKeyPrevix(request, false)));
+		String prefix = getKeyPrevix(request, false);
+		if(prefix != null){
+			List<String> names = readAttributeNames(prefix);
+			AttributeBuffer buffer = peekBuffer(request, prefix);
+			if(buffer != null){
+				for(Map.Entry<String, Serializable> entry : buffer.entries()){
+					if(entry.getValue() == null){
+						names.remove(entry.getKey());
+					}else if(!names.contains(entry.getKey())){
+						names.add(entry.getKey());
+					}
+				}
+			}
+			return names;
+		}
+		return new ArrayList<String>();
 	}
 
 	@Override
@@ -178,15 +654,21 @@ public class RedisSessionStore implements ISessionStore {
 				//now check whether this is a real new session or just a session that needs to be mapped
 				if(jsessionid != null){
 					//session already exist in redis, but this tomcat needs to map back to it, so look up
-					//the original session
-					Object o = redisCache.getCacheObject(getKeyMapKey(jsessionid));
-					while(o != null){
-						//make sure this is the top jsessionid
-						jsessionid = (String) o;
-						o = redisCache.getCacheObject(getKeyMapKey(jsessionid));
+					//the original session and map it to this server's session id in one round trip.
+					//Most passed in ids are the origin already, so fetch that session in the meantime
+					String passedIn = jsessionid;
+					String passedInPrefix = getSessionPrefix(passedIn);
+					CompletableFuture<byte[]> speculative = readAttributeBytesAsync(passedInPrefix,
+						Session.SESSION_ATTRIBUTE_NAME);
+					jsessionid = resolveKeyMap(jsessionid, id,
+						expiryRefresher.getExpireSeconds(httpSession.getMaxInactiveInterval()));
+					RequestCycle cycle = getRequestCycle(request);
+					if(passedIn.equals(jsessionid) && cycle != null){
+						cycle.setMetaData(SPECULATIVE_SESSION, new SpeculativeRead(passedInPrefix, speculative));
+					}else{
+						speculative.cancel(false);
 					}
-					//we have the top session, so map it to this server's session id
-					redisCache.storeCacheObject(getKeyMapKey(id), jsessionid);
+					originSessionIds.put(id, jsessionid);
 					httpSession.setAttribute(KEY_REDIS_SESSION, jsessionid);
 				}else{
 					//no session being passed in and no existing session on this server, create a new one!
@@ -224,6 +706,23 @@ public class RedisSessionStore implements ISessionStore {
 		HttpSession httpSession = getHttpSession(request, false);
 		if (httpSession != null)
 		{
+			// the session is gone for every node, so drop its data and this node's mapping
+			String prefix = getKeyPrevix(request, false);
+			if(prefix != null){
+				AttributeBuffer buffer = peekBuffer(request, prefix);
+				if(buffer != null){
+					buffer.clear();
+				}
+				deleteSession(prefix);
+				expiryRefresher.forget(prefix);
+			}
+			redisCache.deleteCacheObject(getKeyMapKey(httpSession.getId()));
+			originSessionIds.remove(httpSession.getId());
+			forgetWicketSession(request);
+			RequestCycle cycle = getRequestCycle(request);
+			if(cycle != null){
+				cycle.setMetaData(KEY_PREFIX, null);
+			}
 			// tell the app server the session is no longer valid
 			httpSession.invalidate();
 		}
@@ -249,9 +748,17 @@ public class RedisSessionStore implements ISessionStore {
 	@Override
 	public void removeAttribute(Request request, String name)
 	{
-		String key = getKey(request, name, false);
-		if(key != null){
-			redisCache.deleteCacheObject(key);
+		String prefix = getKeyPrevix(request, false);
+		if(prefix != null){
+			if(Session.SESSION_ATTRIBUTE_NAME.equals(name)){
+				forgetWicketSession(request);
+			}
+			AttributeBuffer buffer = getBuffer(request, prefix);
+			if(buffer != null){
+				buffer.put(name, null);
+			}else{
+				deleteAttribute(prefix, name);
+			}
 		}
 	}
 
@@ -264,9 +771,18 @@ public class RedisSessionStore implements ISessionStore {
 	@Override
 	public void setAttribute(Request request, String name, Serializable value)
 	{
-		String key = getKey(request, name, false);
-		if(key != null){
-			redisCache.storeCacheObject(key, value);
+		String prefix = getKeyPrevix(request, false);
+		if(prefix != null){
+			if(Session.SESSION_ATTRIBUTE_NAME.equals(name) && value instanceof Session){
+				writeWicketSession(request, prefix, (Session) value);
+				return;
+			}
+			AttributeBuffer buffer = getBuffer(request, prefix);
+			if(buffer != null){
+				buffer.put(name, value);
+			}else{
+				writeAttribute(prefix, name, value, getExpireSeconds(request));
+			}
 		}
 	}
 
@@ -297,6 +813,7 @@ public class RedisSessionStore implements ISessionStore {
 	@Override
 	public void flushSession(Request request, Session session)
 	{
+		// the same instance is returned for the whole request, so this only binds new sessions
 		if (getAttribute(request, Session.SESSION_ATTRIBUTE_NAME) != session)
 		{
 			// this session is not yet bound, bind it
@@ -304,6 +821,7 @@ public class RedisSessionStore implements ISessionStore {
 		}
 		else
 		{
+			// only written when it changed
 			setAttribute(request, Session.SESSION_ATTRIBUTE_NAME, session);
 		}
 	}
@@ -400,8 +918,127 @@ public class RedisSessionStore implements ISessionStore {
 		}
 	}
 	
+	/**
+	 * A read started before it was known whether it would be needed
+	 */
+	private static final class SpeculativeRead
+	{
+		private final String keyPrefix;
+		private final CompletableFuture<byte[]> data;
+
+		SpeculativeRead(String keyPrefix, CompletableFuture<byte[]> data)
+		{
+			this.keyPrefix = keyPrefix;
+			this.data = data;
+		}
+	}
+	
+	/**
+	 * The attribute writes of one request. Repeated sets and removes of the same attribute
+	 * are coalesced, a null value marks a removed attribute.
+	 */
+	private static final class AttributeBuffer
+	{
+		private final Map<String, Serializable> attributes = new LinkedHashMap<String, Serializable>();
+		private String keyPrefix;
+		private boolean closed = false;
+
+		AttributeBuffer(String keyPrefix)
+		{
+			this.keyPrefix = keyPrefix;
+		}
+
+		String getKeyPrefix()
+		{
+			return keyPrefix;
+		}
+
+		void reset(String keyPrefix)
+		{
+			attributes.clear();
+			this.keyPrefix = keyPrefix;
+		}
+
+		boolean contains(String name)
+		{
+			return attributes.containsKey(name);
+		}
+
+		Serializable get(String name)
+		{
+			return attributes.get(name);
+		}
+
+		void put(String name, Serializable value)
+		{
+			attributes.put(name, value);
+		}
+
+		Set<Map.Entry<String, Serializable>> entries()
+		{
+			return attributes.entrySet();
+		}
+
+		boolean isEmpty()
+		{
+			return attributes.isEmpty();
+		}
+
+		void clear()
+		{
+			attributes.clear();
+		}
+
+		boolean isClosed()
+		{
+			return closed;
+		}
+
+		void close()
+		{
+			closed = true;
+		}
+	}
+	
+	/**
+	 * Maps this server's session id to the origin of the passed in session id
+	 * @param jsessionid the session id passed in with the request
+	 * @param id this server's session id
+	 * @param expireSeconds seconds the mapping expires in, 0 for never
+	 * @return the origin session id
+	 */
+	private String resolveKeyMap(String jsessionid, String id, int expireSeconds){
+		//when sharded the two key map keys live with their sessions, on different shards
+		if(!redisCache.isSharded()){
+			Object root = redisCache.evalScript(RESOLVE_KEY_MAP_SCRIPT,
+				Arrays.asList(getKeyMapKey(jsessionid), getKeyMapKey(id)),
+				Arrays.asList(jsessionid, String.valueOf(MAX_SESSION_ID_LENGTH), String.valueOf(expireSeconds)));
+			if(root != null){
+				return root.toString();
+			}
+		}
+		//sharded or the script failed, read and write the mappings one by one
+		String origin = getMapped(jsessionid);
+		redisCache.storeString(getKeyMapKey(id), origin, expireSeconds);
+		return origin;
+	}
+	
+	/**
+	 * @param sessionId
+	 * @return the session id sessionId is mapped to, or sessionId if it isn't mapped to a plain session id
+	 */
+	private String getMapped(String sessionId){
+		String mapped = redisCache.getString(getKeyMapKey(sessionId));
+		return mapped != null && SESSION_ID.matcher(mapped).matches() ? mapped : sessionId;
+	}
+	
+	/**
+	 * The key map key is tagged like the session's own keys, so it lives on the same shard as the session
+	 * @param sessionId
+	 * @return the key holding the origin session id sessionId is mapped to
+	 */
 	public String getKeyMapKey(String sessionId){
-		return KEY_PREFIX_SESSION + KEY_PREFIX_DIVIDER + sessionId + KEY_PREFIX_DIVIDER + KEY_MAP;
+		return getSessionPrefix(sessionId) + KEY_MAP;
 	}
 	
 }
@@ -21,9 +21,19 @@ import org.apache.wicket.util.IProvider;
 
 public class RedisSessionStoreProvider implements IProvider<ISessionStore>{
 
+	private final RedisSessionStore.StorageLayout layout;
+	
+	public RedisSessionStoreProvider(){
+		this(RedisSessionStore.StorageLayout.KEY_PER_ATTRIBUTE);
+	}
+	
+	public RedisSessionStoreProvider(RedisSessionStore.StorageLayout layout){
+		this.layout = layout;
+	}
+	
 	@Override
 	public ISessionStore get() {
-		return new RedisSessionStore();
+		return new RedisSessionStore(layout);
 	}
 
 }
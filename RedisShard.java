@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * One Redis master, with the replica its reads go to, and the connections to both
+ */
+public class RedisShard {
+	private final String host, slaveHost;
+	private final int port, slavePort;
+	
+	final JedisPool pool, slavePool;
+	//null unless the backend is multiplexed
+	private final RedisMultiplexedConnection[] connections, slaveConnections;
+	private final AtomicInteger nextConnection = new AtomicInteger();
+	private final int commandTimeout;
+	private static final byte[][] PING = {SafeEncoder.encode("PING")};
+	//null unless reads of recent writes are kept off the replica
+	private final RedisReplicationMonitor replicationMonitor;
+	//null unless failures are tracked
+	private volatile RedisCircuitBreaker circuitBreaker;
+	
+	/**
+	 * @param master host[:port] of the master
+	 * @param slave host[:port] of the replica, may be the same as the master
+	 * @param poolConfig
+	 * @param multiplexedConnections connections per node of the multiplexed backend, 0 for the pool backend
+	 * @param commandTimeout in milliseconds
+	 * @param replicationCheckInterval how often the replication offsets are compared, 0 to always read from the replica
+	 */
+	public RedisShard(String master, String slave, JedisPoolConfig poolConfig, int multiplexedConnections,
+			int commandTimeout, long replicationCheckInterval){
+		this.commandTimeout = commandTimeout;
+		host = parseHost(master);
+		port = parsePort(master);
+		slaveHost = parseHost(slave);
+		slavePort = parsePort(slave);
+		//without a replica the reads share the master's connections
+		boolean replica = !getName().equals(getSlaveName());
+		pool = new JedisPool(poolConfig, host, port, commandTimeout);
+		slavePool = replica ? new JedisPool(poolConfig, slaveHost, slavePort, commandTimeout) : pool;
+		if(multiplexedConnections > 0){
+			connections = newConnections(host, port, multiplexedConnections, commandTimeout);
+			slaveConnections = replica ? newConnections(slaveHost, slavePort, multiplexedConnections, commandTimeout)
+				: connections;
+		}else{
+			connections = null;
+			slaveConnections = null;
+		}
+		if(replicationCheckInterval > 0 && replica){
+			replicationMonitor = new RedisReplicationMonitor(pool, slavePool, replicationCheckInterval);
+		}else{
+			replicationMonitor = null;
+		}
+	}
+	
+	private static RedisMultiplexedConnection[] newConnections(String host, int port, int count, int commandTimeout){
+		RedisMultiplexedConnection[] connections = new RedisMultiplexedConnection[count];
+		for(int i = 0; i < connections.length; i++){
+			connections[i] = new RedisMultiplexedConnection(host, port, commandTimeout, false);
+		}
+		return connections;
+	}
+	
+	static String parseHost(String hostAndPort){
+		int colon = hostAndPort.lastIndexOf(':');
+		return (colon < 0 ? hostAndPort : hostAndPort.substring(0, colon)).trim();
+	}
+	
+	static int parsePort(String hostAndPort){
+		int colon = hostAndPort.lastIndexOf(':');
+		return colon < 0 ? Protocol.DEFAULT_PORT : Integer.parseInt(hostAndPort.substring(colon + 1).trim());
+	}
+	
+	/**
+	 * @return host:port of the master, which identifies the shard
+	 */
+	public String getName(){
+		return host + ":" + port;
+	}
+	
+	public String getSlaveName(){
+		return slaveHost + ":" + slavePort;
+	}
+	
+	String getHost(){
+		return host;
+	}
+	
+	int getPort(){
+		return port;
+	}
+	
+	boolean isMultiplexed(){
+		return connections != null;
+	}
+	
+	RedisMultiplexedConnection connection(boolean master){
+		RedisMultiplexedConnection[] c = master ? connections : slaveConnections;
+		return c[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % c.length];
+	}
+	
+	/**
+	 * @param key
+	 * @return whether the key must be read from the master, because the replica may not have the last write yet
+	 */
+	boolean readFromMaster(String key){
+		return replicationMonitor != null && !replicationMonitor.isReplicaCurrent(key);
+	}
+	
+	boolean readFromMaster(Collection<String> keys){
+		for(String key : keys){
+			if(readFromMaster(key)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param key
+	 * @return the pool to read the key from
+	 */
+	JedisPool readPool(String key){
+		return readFromMaster(key) ? pool : slavePool;
+	}
+	
+	/**
+	 * Records the keys as written for the read routing
+	 * @param keys
+	 */
+	void written(Collection<String> keys){
+		if(replicationMonitor != null){
+			replicationMonitor.written(keys);
+		}
+	}
+	
+	/**
+	 * Opens connections to the master and the replica, and checks them with a PING
+	 * @param count connections per pool
+	 */
+	void warmUp(int count) throws Exception{
+		warmUp(pool, count);
+		if(slavePool != pool){
+			warmUp(slavePool, count);
+		}
+		if(connections != null){
+			List<CompletableFuture<Object>> replies = new ArrayList<CompletableFuture<Object>>();
+			for(RedisMultiplexedConnection connection : connections){
+				replies.add(connection.send(PING));
+			}
+			for(RedisMultiplexedConnection connection : slaveConnections != connections ? slaveConnections
+					: new RedisMultiplexedConnection[0]){
+				replies.add(connection.send(PING));
+			}
+			for(CompletableFuture<Object> reply : replies){
+				reply.get(commandTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	private static void warmUp(JedisPool pool, int count){
+		List<Jedis> borrowed = new ArrayList<Jedis>(count);
+		try{
+			for(int i = 0; i < count; i++){
+				Jedis jedis = pool.getResource();
+				borrowed.add(jedis);
+				jedis.ping();
+			}
+		}finally{
+			//returned together, so the pool keeps them all open as idle connections
+			for(Jedis jedis : borrowed){
+				pool.returnResource(jedis);
+			}
+		}
+	}
+	
+	void setCircuitBreaker(RedisCircuitBreaker circuitBreaker){
+		this.circuitBreaker = circuitBreaker;
+	}
+	
+	/**
+	 * @return false while the master is considered down, no calls should be made to it then
+	 */
+	public boolean isAvailable(){
+		RedisCircuitBreaker breaker = circuitBreaker;
+		return breaker == null || breaker.isAvailable();
+	}
+	
+	/**
+	 * Records a failed call for the circuit breaker
+	 * @param e
+	 */
+	void failed(Exception e){
+		RedisCircuitBreaker breaker = circuitBreaker;
+		if(breaker != null){
+			breaker.failed(e);
+		}
+	}
+	
+	void destroy(){
+		if(circuitBreaker != null){
+			circuitBreaker.destroy();
+		}
+		if(replicationMonitor != null){
+			replicationMonitor.destroy();
+		}
+		if(connections != null){
+			for(RedisMultiplexedConnection connection : connections){
+				connection.close();
+			}
+			if(slaveConnections != connections){
+				for(RedisMultiplexedConnection connection : slaveConnections){
+					connection.close();
+				}
+			}
+		}
+		pool.destroy();
+		if(slavePool != pool){
+			slavePool.destroy();
+		}
+	}
+	
+	@Override
+	public String toString(){
+		return getName();
+	}
+}
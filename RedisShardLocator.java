@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import redis.clients.util.Hashing;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Finds the shard a key lives on. Only the hash tag of a key is hashed, the part between the first
+ * <code>{</code> and the next <code>}</code> like Redis Cluster does, so keys with the same tag
+ * always live on the same shard.
+ * <p>
+ * This is client side sharding over standalone Redis nodes, not a Redis Cluster client. Nothing follows
+ * MOVED or ASK redirects, and indexes without a hash tag keep a part on every shard next to the keys
+ * they list, so the nodes must not run in cluster mode.
+ */
+public class RedisShardLocator {
+	public enum Mode {
+		/**
+		 * A ring with many points per shard, named after the shard. Adding a shard only moves
+		 * the keys between its points and the points before them.
+		 */
+		CONSISTENT_HASH,
+		/**
+		 * 16384 slots computed like Redis Cluster does, CRC16 of the tag. The slots are spread evenly over
+		 * the shards in the order they are configured, so every node must list the shards in the same order.
+		 */
+		HASH_SLOTS
+	}
+	
+	//points on the ring per shard
+	private static final int VIRTUAL_NODES = 160;
+	private static final int SLOTS = 16384;
+	
+	private final List<RedisShard> shards;
+	private final Mode mode;
+	private final TreeMap<Long, RedisShard> ring = new TreeMap<Long, RedisShard>();
+	private final RedisShard[] slots = new RedisShard[SLOTS];
+	
+	public RedisShardLocator(List<RedisShard> shards, Mode mode){
+		this.shards = shards;
+		this.mode = mode;
+		if(mode == Mode.CONSISTENT_HASH){
+			for(RedisShard shard : shards){
+				for(int i = 0; i < VIRTUAL_NODES; i++){
+					ring.put(Hashing.MURMUR_HASH.hash(shard.getName() + "-" + i), shard);
+				}
+			}
+		}else{
+			for(int slot = 0; slot < SLOTS; slot++){
+				slots[slot] = shards.get((int) ((long) slot * shards.size() / SLOTS));
+			}
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return the shard the key lives on
+	 */
+	public RedisShard getShard(String key){
+		if(shards.size() == 1){
+			return shards.get(0);
+		}
+		String tag = getHashTag(key);
+		if(mode == Mode.HASH_SLOTS){
+			return slots[getSlot(tag)];
+		}
+		SortedMap<Long, RedisShard> tail = ring.tailMap(Hashing.MURMUR_HASH.hash(tag));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+	
+	/**
+	 * @param key
+	 * @return the part of the key that is hashed, the whole key unless it has a non-empty {tag}
+	 */
+	public static String getHashTag(String key){
+		int start = key.indexOf('{');
+		if(start >= 0){
+			int end = key.indexOf('}', start + 1);
+			if(end > start + 1){
+				return key.substring(start + 1, end);
+			}
+		}
+		return key;
+	}
+	
+	/**
+	 * @param key
+	 * @return whether the key has a hash tag
+	 */
+	public static boolean hasHashTag(String key){
+		return !getHashTag(key).equals(key);
+	}
+	
+	/**
+	 * @param tag
+	 * @return the slot of the tag, CRC16-CCITT (XMODEM) modulo 16384
+	 */
+	static int getSlot(String tag){
+		int crc = 0;
+		for(byte b : SafeEncoder.encode(tag)){
+			crc ^= (b & 0xFF) << 8;
+			for(int i = 0; i < 8; i++){
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+		}
+		return (crc & 0xFFFF) % SLOTS;
+	}
+	
+	public List<RedisShard> getShards(){
+		return shards;
+	}
+	
+	public Mode getMode(){
+		return mode;
+	}
+}
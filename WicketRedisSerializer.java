@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.serialize.ISerializer;
+
+/**
+ * Delegates to the {@link ISerializer} configured in the Wicket application's framework settings.
+ */
+public class WicketRedisSerializer implements IRedisSerializer {
+	
+	public static final byte FORMAT_ID = 2;
+	
+	private volatile ISerializer serializer;
+	//the application the serializer is looked up from, null to take the current one
+	private final Application application;
+	
+	/**
+	 * Construct. The serializer is looked up on first use from the application that is current now,
+	 * so it also works on threads without one, like those of the async reads.
+	 */
+	public WicketRedisSerializer(){
+		application = Application.exists() ? Application.get() : null;
+	}
+	
+	/**
+	 * Construct.
+	 * 
+	 * @param serializer
+	 *            the Wicket serializer to delegate to
+	 */
+	public WicketRedisSerializer(ISerializer serializer){
+		this.serializer = serializer;
+		this.application = null;
+	}
+	
+	private ISerializer getSerializer(){
+		if(serializer == null){
+			serializer = (application != null ? application : Application.get()).getFrameworkSettings().getSerializer();
+		}
+		return serializer;
+	}
+	
+	@Override
+	public byte getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public byte[] serialize(Object obj) throws IOException {
+		byte[] serialized = getSerializer().serialize(obj);
+		if(serialized == null){
+			throw new IOException("Wicket serializer could not serialize " + obj.getClass().getName());
+		}
+		byte[] data = new byte[serialized.length + 1];
+		data[0] = FORMAT_ID;
+		System.arraycopy(serialized, 0, data, 1, serialized.length);
+		return data;
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		return getSerializer().deserialize(Arrays.copyOfRange(data, 1, data.length));
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Serializable;
+
+import benchmarks.Subjects;
+
+/**
+ * Drives a RedisCache of its own for the benchmarks, see {@link Subjects}
+ */
+public class BenchmarkCache implements Subjects.Cache {
+	private final RedisCache redisCache;
+	
+	/**
+	 * @param backend a {@link RedisCache.Backend}
+	 */
+	public BenchmarkCache(String backend){
+		redisCache = new RedisCache();
+		redisCache.setBackend(RedisCache.Backend.valueOf(backend));
+		redisCache.init();
+	}
+	
+	@Override
+	public void storeBytes(String key, byte[] data){
+		redisCache.storeBytes(key, data);
+	}
+	
+	@Override
+	public byte[] getBytes(String key){
+		return redisCache.getBytes(key);
+	}
+	
+	@Override
+	public void storeObject(String key, Serializable value){
+		redisCache.storeCacheObject(key, value);
+	}
+	
+	@Override
+	public Object getObject(String key){
+		return redisCache.getCacheObject(key);
+	}
+	
+	@Override
+	public void destroy(){
+		redisCache.destroy();
+	}
+}
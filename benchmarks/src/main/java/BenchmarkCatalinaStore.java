@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.session.PersistentManager;
+import org.apache.catalina.session.StandardSession;
+
+import benchmarks.SampleCart;
+import benchmarks.Subjects;
+
+/**
+ * Drives a CatalinaRedisSessionStore for the benchmarks, see {@link Subjects}
+ */
+public class BenchmarkCatalinaStore implements Subjects.CatalinaStore {
+	private final CatalinaRedisSessionStore store = new CatalinaRedisSessionStore();
+	private final StandardSession session;
+	private int hits = 0;
+	
+	/**
+	 * @param items the number of items in the cart attribute of the session
+	 * @param deltaMode see {@link CatalinaRedisSessionStore#setDeltaMode(boolean)}
+	 */
+	public BenchmarkCatalinaStore(String items, String deltaMode) throws LifecycleException{
+		store.setDeltaMode(Boolean.parseBoolean(deltaMode));
+		PersistentManager manager = new PersistentManager();
+		manager.setContainer(new StandardContext());
+		store.setManager(manager);
+		store.start();
+		session = new StandardSession(manager);
+		session.setValid(true);
+		session.setCreationTime(System.currentTimeMillis());
+		session.setMaxInactiveInterval(30 * 60);
+		session.setId("benchmark-" + System.identityHashCode(this), false);
+		session.setAttribute("user", "benchmark", false);
+		session.setAttribute("cart", new SampleCart("benchmark", Integer.parseInt(items)), false);
+	}
+	
+	@Override
+	public void save() throws IOException{
+		session.setAttribute("hits", Integer.valueOf(++hits), false);
+		store.save(session);
+	}
+	
+	@Override
+	public String load() throws IOException, ClassNotFoundException{
+		Session loaded = store.load(session.getIdInternal());
+		if(loaded == null || ((StandardSession) loaded).getAttribute("cart") == null){
+			throw new IllegalStateException("The session wasn't loaded");
+		}
+		return loaded.getIdInternal();
+	}
+	
+	@Override
+	public void destroy(){
+		try{
+			store.remove(session.getIdInternal());
+			store.stop();
+		}catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import benchmarks.SampleCart;
+import benchmarks.Subjects;
+
+/**
+ * Drives one of the serializers for the benchmarks, see {@link Subjects}
+ */
+public class BenchmarkSerializer implements Subjects.Serializer {
+	private final IRedisSerializer serializer;
+	
+	/**
+	 * @param name java, or compact for a CompactRedisSerializer with the sample classes registered
+	 */
+	public BenchmarkSerializer(String name){
+		if(name.equals("compact")){
+			serializer = new CompactRedisSerializer().register(SampleCart.class).register(SampleCart.Item.class);
+		}else if(name.equals("java")){
+			serializer = new JavaRedisSerializer();
+		}else{
+			throw new IllegalArgumentException("Unknown serializer " + name);
+		}
+	}
+	
+	@Override
+	public byte[] serialize(Object value) throws IOException{
+		return serializer.serialize(value);
+	}
+	
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException{
+		return serializer.deserialize(data);
+	}
+}
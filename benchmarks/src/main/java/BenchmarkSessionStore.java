@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Serializable;
+
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.protocol.http.WebSession;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.util.tester.BaseWicketTester;
+
+import benchmarks.Subjects;
+
+/**
+ * Drives a RedisSessionStore for the benchmarks, see {@link Subjects}. The requests aren't part of a
+ * request cycle, so every call goes to Redis, like a call outside of a request would.
+ * Create and use it on the same thread, the Wicket application is attached to it.
+ */
+public class BenchmarkSessionStore implements Subjects.SessionStore {
+	private final BaseWicketTester tester;
+	private final RedisSessionStore store;
+	private final Request request;
+	private final BenchmarkSession session;
+	
+	/**
+	 * @param layout a {@link RedisSessionStore.StorageLayout}
+	 */
+	public BenchmarkSessionStore(String layout){
+		tester = new BaseWicketTester(new MockApplication());
+		store = new RedisSessionStore(RedisSessionStore.StorageLayout.valueOf(layout));
+		MockHttpSession httpSession = tester.getHttpSession();
+		httpSession.setTemporary(false);
+		//so the session id doesn't have to be resolved
+		httpSession.setAttribute(RedisSessionStore.KEY_REDIS_SESSION, httpSession.getId());
+		request = new ServletWebRequest(new MockHttpServletRequest(tester.getApplication(), httpSession,
+			tester.getServletContext()), "");
+		session = new BenchmarkSession(request);
+		store.bind(request, session);
+	}
+	
+	@Override
+	public Serializable getAttribute(String name){
+		return store.getAttribute(request, name);
+	}
+	
+	@Override
+	public void setAttribute(String name, Serializable value){
+		store.setAttribute(request, name, value);
+	}
+	
+	@Override
+	public void flushSession(){
+		session.changed++;
+		store.flushSession(request, session);
+	}
+	
+	@Override
+	public void destroy(){
+		store.invalidate(request);
+		store.destroy();
+		tester.destroy();
+	}
+	
+	private static class BenchmarkSession extends WebSession {
+		private static final long serialVersionUID = 1L;
+		
+		private long changed;
+		
+		BenchmarkSession(Request request){
+			super(request);
+		}
+	}
+}
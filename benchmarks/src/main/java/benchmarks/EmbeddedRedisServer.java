@@ -0,0 +1,653 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory stand-in for Redis that speaks RESP, so the benchmarks run without a Redis server.
+ * It covers the strings, hashes, sorted sets, expiry, SCAN, MULTI/EXEC, PUBLISH/SUBSCRIBE and PUBSUB NUMSUB
+ * commands RedisCache sends. Scripts are loaded but not run, EVAL and EVALSHA reply with an error.
+ * <p>
+ * Every connection has its own thread, and all commands run under one lock.
+ */
+public class EmbeddedRedisServer {
+	private static EmbeddedRedisServer shared;
+
+	private final ServerSocket serverSocket;
+	private final Map<String, Object> data = new HashMap<String, Object>();
+	//expiry time in milliseconds, by key
+	private final Map<String, Long> expiries = new HashMap<String, Long>();
+	private final Map<String, String> scripts = new HashMap<String, String>();
+	//the connections subscribed to each channel, guarded by the data lock
+	private final Map<String, List<OutputStream>> subscribers = new HashMap<String, List<OutputStream>>();
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param port 0 for any free port
+	 * @throws IOException
+	 */
+	public EmbeddedRedisServer(int port) throws IOException{
+		serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				accept();
+			}
+		}, "EmbeddedRedisServer-" + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Starts a server for the whole JVM on first use and points RedisCache at it, through the redis.hosts property
+	 * @return the server
+	 */
+	public static synchronized EmbeddedRedisServer startShared() throws IOException{
+		if(shared == null){
+			shared = new EmbeddedRedisServer(0);
+			System.setProperty("redis.hosts", "127.0.0.1:" + shared.getPort());
+		}
+		return shared;
+	}
+
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	public void stop() throws IOException{
+		stopped = true;
+		serverSocket.close();
+	}
+
+	private void accept(){
+		while(!stopped){
+			try{
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread worker = new Thread(new Runnable(){
+					@Override
+					public void run(){
+						serve(socket);
+					}
+				}, "EmbeddedRedisServer-connection");
+				worker.setDaemon(true);
+				worker.start();
+			}catch(IOException e){
+				//closed
+			}
+		}
+	}
+
+	private void serve(Socket socket){
+		OutputStream out = null;
+		try{
+			InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+			out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			List<byte[][]> transaction = null;
+			while(true){
+				byte[][] command = readCommand(in);
+				String name = string(command[0]).toUpperCase();
+				if(name.equals("MULTI")){
+					transaction = new ArrayList<byte[][]>();
+					writeStatus(out, "OK");
+				}else if(name.equals("EXEC") && transaction != null){
+					List<Object> replies = new ArrayList<Object>();
+					synchronized(data){
+						for(byte[][] queued : transaction){
+							replies.add(execute(queued));
+						}
+					}
+					transaction = null;
+					write(out, replies);
+				}else if(name.equals("DISCARD") && transaction != null){
+					transaction = null;
+					writeStatus(out, "OK");
+				}else if(transaction != null){
+					transaction.add(command);
+					writeStatus(out, "QUEUED");
+				}else if(name.equals("SUBSCRIBE") || name.equals("UNSUBSCRIBE")){
+					subscribe(out, command, name.equals("SUBSCRIBE"));
+				}else if(name.equals("QUIT")){
+					writeStatus(out, "OK");
+					out.flush();
+					break;
+				}else{
+					Object reply;
+					synchronized(data){
+						reply = execute(command);
+					}
+					write(out, reply);
+				}
+				//pipelined commands are answered together
+				if(in.available() == 0){
+					out.flush();
+				}
+			}
+		}catch(EOFException e){
+			//the client went away
+		}catch(IOException e){
+			//the client went away
+		}finally{
+			synchronized(data){
+				for(List<OutputStream> outs : subscribers.values()){
+					outs.remove(out);
+				}
+			}
+			try{
+				socket.close();
+			}catch(IOException e){
+				//closing anyway
+			}
+		}
+	}
+
+	private Object execute(byte[][] c){
+		String name = string(c[0]).toUpperCase();
+		try{
+			if(name.equals("PING")){
+				return new Status("PONG");
+			}else if(name.equals("SELECT") || name.equals("AUTH")){
+				return new Status("OK");
+			}else if(name.equals("GET")){
+				return getString(string(c[1]));
+			}else if(name.equals("MGET")){
+				List<Object> values = new ArrayList<Object>();
+				for(int i = 1; i < c.length; i++){
+					Object value = get(string(c[i]));
+					values.add(value instanceof byte[] ? value : null);
+				}
+				return values;
+			}else if(name.equals("SET")){
+				return set(c);
+			}else if(name.equals("SETEX")){
+				put(string(c[1]), c[3]);
+				expire(string(c[1]), Long.parseLong(string(c[2])) * 1000);
+				return new Status("OK");
+			}else if(name.equals("DEL")){
+				long count = 0;
+				for(int i = 1; i < c.length; i++){
+					if(remove(string(c[i]))){
+						count++;
+					}
+				}
+				return count;
+			}else if(name.equals("EXISTS")){
+				return get(string(c[1])) == null ? 0L : 1L;
+			}else if(name.equals("EXPIRE") || name.equals("PEXPIRE")){
+				String key = string(c[1]);
+				if(get(key) == null){
+					return 0L;
+				}
+				long amount = Long.parseLong(string(c[2]));
+				expire(key, name.equals("EXPIRE") ? amount * 1000 : amount);
+				return 1L;
+			}else if(name.equals("TTL")){
+				String key = string(c[1]);
+				if(get(key) == null){
+					return -2L;
+				}
+				Long expiry = expiries.get(key);
+				return expiry == null ? -1L : (expiry - System.currentTimeMillis()) / 1000;
+			}else if(name.equals("HSET")){
+				Map<String, byte[]> hash = hash(string(c[1]), true);
+				return hash.put(string(c[2]), c[3]) == null ? 1L : 0L;
+			}else if(name.equals("HGET")){
+				Map<String, byte[]> hash = hash(string(c[1]), false);
+				return hash == null ? null : hash.get(string(c[2]));
+			}else if(name.equals("HDEL")){
+				Map<String, byte[]> hash = hash(string(c[1]), false);
+				long count = 0;
+				for(int i = 2; hash != null && i < c.length; i++){
+					if(hash.remove(string(c[i])) != null){
+						count++;
+					}
+				}
+				if(hash != null && hash.isEmpty()){
+					remove(string(c[1]));
+				}
+				return count;
+			}else if(name.equals("HKEYS")){
+				Map<String, byte[]> hash = hash(string(c[1]), false);
+				List<Object> fields = new ArrayList<Object>();
+				if(hash != null){
+					for(String field : hash.keySet()){
+						fields.add(bytes(field));
+					}
+				}
+				return fields;
+			}else if(name.equals("HGETALL")){
+				Map<String, byte[]> hash = hash(string(c[1]), false);
+				List<Object> fieldsAndValues = new ArrayList<Object>();
+				if(hash != null){
+					for(Map.Entry<String, byte[]> entry : hash.entrySet()){
+						fieldsAndValues.add(bytes(entry.getKey()));
+						fieldsAndValues.add(entry.getValue());
+					}
+				}
+				return fieldsAndValues;
+			}else if(name.equals("HINCRBY")){
+				Map<String, byte[]> hash = hash(string(c[1]), true);
+				byte[] old = hash.get(string(c[2]));
+				long value = (old == null ? 0 : Long.parseLong(string(old))) + Long.parseLong(string(c[3]));
+				hash.put(string(c[2]), bytes(String.valueOf(value)));
+				return value;
+			}else if(name.equals("ZADD")){
+				Map<String, Double> zset = zset(string(c[1]), true);
+				long added = 0;
+				for(int i = 2; i + 1 < c.length; i += 2){
+					if(zset.put(string(c[i + 1]), Double.parseDouble(string(c[i]))) == null){
+						added++;
+					}
+				}
+				return added;
+			}else if(name.equals("ZREM")){
+				Map<String, Double> zset = zset(string(c[1]), false);
+				long count = 0;
+				for(int i = 2; zset != null && i < c.length; i++){
+					if(zset.remove(string(c[i])) != null){
+						count++;
+					}
+				}
+				if(zset != null && zset.isEmpty()){
+					remove(string(c[1]));
+				}
+				return count;
+			}else if(name.equals("ZCARD")){
+				Map<String, Double> zset = zset(string(c[1]), false);
+				return zset == null ? 0L : (long) zset.size();
+			}else if(name.equals("ZRANGE")){
+				return zrange(string(c[1]), Integer.parseInt(string(c[2])), Integer.parseInt(string(c[3])));
+			}else if(name.equals("ZRANGEBYSCORE")){
+				return zrangeByScore(string(c[1]), score(string(c[2])), score(string(c[3])));
+			}else if(name.equals("SCAN")){
+				return scan(c);
+			}else if(name.equals("PUBLISH")){
+				return publish(string(c[1]), c[2]);
+			}else if(name.equals("PUBSUB") && string(c[1]).equalsIgnoreCase("NUMSUB")){
+				List<Object> counts = new ArrayList<Object>();
+				for(int i = 2; i < c.length; i++){
+					List<OutputStream> outs = subscribers.get(string(c[i]));
+					counts.add(c[i]);
+					counts.add((long) (outs == null ? 0 : outs.size()));
+				}
+				return counts;
+			}else if(name.equals("SCRIPT") && string(c[1]).equalsIgnoreCase("LOAD")){
+				String sha = sha1(string(c[2]));
+				scripts.put(sha, string(c[2]));
+				return bytes(sha);
+			}else if(name.equals("EVAL") || name.equals("EVALSHA")){
+				return new Error("ERR scripts are not supported by the embedded server");
+			}else if(name.equals("INFO")){
+				return bytes("# Replication\r\nrole:master\r\nmaster_repl_offset:0\r\n");
+			}
+			return new Error("ERR unknown command '" + name + "'");
+		}catch(WrongType e){
+			return new Error("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}catch(RuntimeException e){
+			return new Error("ERR " + e);
+		}
+	}
+
+	private void subscribe(OutputStream out, byte[][] c, boolean subscribe) throws IOException{
+		synchronized(data){
+			for(int i = 1; i < c.length; i++){
+				String channel = string(c[i]);
+				List<OutputStream> outs = subscribers.get(channel);
+				if(outs == null){
+					outs = new ArrayList<OutputStream>();
+					subscribers.put(channel, outs);
+				}
+				outs.remove(out);
+				if(subscribe){
+					outs.add(out);
+				}
+				synchronized(out){
+					write(out, Arrays.<Object>asList(bytes(subscribe ? "subscribe" : "unsubscribe"), c[i],
+						(long) (subscribe ? 1 : 0)));
+					out.flush();
+				}
+			}
+		}
+	}
+
+	private long publish(String channel, byte[] message){
+		List<OutputStream> outs = subscribers.get(channel);
+		if(outs == null){
+			return 0L;
+		}
+		long count = 0;
+		for(OutputStream out : outs){
+			try{
+				synchronized(out){
+					write(out, Arrays.<Object>asList(bytes("message"), bytes(channel), message));
+					out.flush();
+				}
+				count++;
+			}catch(IOException e){
+				//removed when its connection ends
+			}
+		}
+		return count;
+	}
+
+	private Object set(byte[][] c){
+		String key = string(c[1]);
+		long expire = 0;
+		boolean nx = false, xx = false;
+		for(int i = 3; i < c.length; i++){
+			String option = string(c[i]).toUpperCase();
+			if(option.equals("EX")){
+				expire = Long.parseLong(string(c[++i])) * 1000;
+			}else if(option.equals("PX")){
+				expire = Long.parseLong(string(c[++i]));
+			}else if(option.equals("NX")){
+				nx = true;
+			}else if(option.equals("XX")){
+				xx = true;
+			}
+		}
+		boolean exists = get(key) != null;
+		if((nx && exists) || (xx && !exists)){
+			return null;
+		}
+		put(key, c[2]);
+		if(expire > 0){
+			expire(key, expire);
+		}
+		return new Status("OK");
+	}
+
+	private List<Object> zrange(String key, int start, int stop){
+		List<Object> members = new ArrayList<Object>();
+		final Map<String, Double> zset = zset(key, false);
+		if(zset == null){
+			return members;
+		}
+		List<String> sorted = new ArrayList<String>(zset.keySet());
+		Collections.sort(sorted, new Comparator<String>(){
+			@Override
+			public int compare(String a, String b){
+				int byScore = Double.compare(zset.get(a), zset.get(b));
+				return byScore != 0 ? byScore : a.compareTo(b);
+			}
+		});
+		int size = sorted.size();
+		if(start < 0){
+			start = Math.max(size + start, 0);
+		}
+		if(stop < 0){
+			stop = size + stop;
+		}
+		for(int i = start; i <= stop && i < size; i++){
+			members.add(bytes(sorted.get(i)));
+		}
+		return members;
+	}
+
+	private List<Object> zrangeByScore(String key, double min, double max){
+		List<Object> members = new ArrayList<Object>();
+		Map<String, Double> zset = zset(key, false);
+		if(zset == null){
+			return members;
+		}
+		for(Object member : zrange(key, 0, -1)){
+			double score = zset.get(string((byte[]) member));
+			if(score >= min && score <= max){
+				members.add(member);
+			}
+		}
+		return members;
+	}
+
+	private static double score(String score){
+		if(score.equalsIgnoreCase("-inf")){
+			return Double.NEGATIVE_INFINITY;
+		}else if(score.equalsIgnoreCase("+inf") || score.equalsIgnoreCase("inf")){
+			return Double.POSITIVE_INFINITY;
+		}
+		return Double.parseDouble(score);
+	}
+
+	/**
+	 * Returns every match in one go, with cursor 0
+	 */
+	private List<Object> scan(byte[][] c){
+		String pattern = "*";
+		for(int i = 2; i + 1 < c.length; i += 2){
+			if(string(c[i]).equalsIgnoreCase("MATCH")){
+				pattern = string(c[i + 1]);
+			}
+		}
+		String regex = pattern.replace("\\", "\\\\").replace(".", "\\.").replace("?", ".").replace("*", ".*");
+		List<Object> keys = new ArrayList<Object>();
+		for(String key : new ArrayList<String>(data.keySet())){
+			if(get(key) != null && key.matches(regex)){
+				keys.add(bytes(key));
+			}
+		}
+		List<Object> reply = new ArrayList<Object>();
+		reply.add(bytes("0"));
+		reply.add(keys);
+		return reply;
+	}
+
+	private Object get(String key){
+		Long expiry = expiries.get(key);
+		if(expiry != null && expiry <= System.currentTimeMillis()){
+			remove(key);
+			return null;
+		}
+		return data.get(key);
+	}
+
+	private byte[] getString(String key){
+		Object value = get(key);
+		if(value != null && !(value instanceof byte[])){
+			throw new WrongType();
+		}
+		return (byte[]) value;
+	}
+
+	private void put(String key, Object value){
+		data.put(key, value);
+		expiries.remove(key);
+	}
+
+	private boolean remove(String key){
+		expiries.remove(key);
+		return data.remove(key) != null;
+	}
+
+	private void expire(String key, long millis){
+		expiries.put(key, System.currentTimeMillis() + millis);
+	}
+
+	private Map<String, byte[]> hash(String key, boolean create){
+		Object value = get(key);
+		if(value == null && create){
+			value = new HashValue();
+			data.put(key, value);
+		}
+		if(value != null && !(value instanceof HashValue)){
+			throw new WrongType();
+		}
+		return (HashValue) value;
+	}
+
+	private Map<String, Double> zset(String key, boolean create){
+		Object value = get(key);
+		if(value == null && create){
+			value = new SortedSetValue();
+			data.put(key, value);
+		}
+		if(value != null && !(value instanceof SortedSetValue)){
+			throw new WrongType();
+		}
+		return (SortedSetValue) value;
+	}
+
+	/**
+	 * A hash, values by field
+	 */
+	private static final class HashValue extends LinkedHashMap<String, byte[]> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * A sorted set, scores by member
+	 */
+	private static final class SortedSetValue extends HashMap<String, Double> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final class WrongType extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final class Status {
+		final String text;
+		Status(String text){
+			this.text = text;
+		}
+	}
+
+	private static final class Error {
+		final String text;
+		Error(String text){
+			this.text = text;
+		}
+	}
+
+	private static byte[][] readCommand(InputStream in) throws IOException{
+		int type = in.read();
+		if(type < 0){
+			throw new EOFException();
+		}
+		if(type != '*'){
+			throw new IOException("Expected an array, got " + (char) type);
+		}
+		int count = (int) readNumber(in);
+		byte[][] args = new byte[count][];
+		for(int i = 0; i < count; i++){
+			if(in.read() != '$'){
+				throw new IOException("Expected a bulk string");
+			}
+			int length = (int) readNumber(in);
+			byte[] arg = new byte[length];
+			int read = 0;
+			while(read < length){
+				int n = in.read(arg, read, length - read);
+				if(n < 0){
+					throw new EOFException();
+				}
+				read += n;
+			}
+			in.read();
+			in.read();
+			args[i] = arg;
+		}
+		return args;
+	}
+
+	private static long readNumber(InputStream in) throws IOException{
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while((b = in.read()) != '\r'){
+			if(b < 0){
+				throw new EOFException();
+			}
+			if(b == '-'){
+				negative = true;
+			}else{
+				value = value * 10 + (b - '0');
+			}
+		}
+		in.read();
+		return negative ? -value : value;
+	}
+
+	private static void write(OutputStream out, Object reply) throws IOException{
+		if(reply == null){
+			out.write(bytes("$-1\r\n"));
+		}else if(reply instanceof Status){
+			writeStatus(out, ((Status) reply).text);
+		}else if(reply instanceof Error){
+			out.write(bytes("-" + ((Error) reply).text + "\r\n"));
+		}else if(reply instanceof Long){
+			out.write(bytes(":" + reply + "\r\n"));
+		}else if(reply instanceof byte[]){
+			byte[] value = (byte[]) reply;
+			out.write(bytes("$" + value.length + "\r\n"));
+			out.write(value);
+			out.write(bytes("\r\n"));
+		}else if(reply instanceof List){
+			List<?> list = (List<?>) reply;
+			out.write(bytes("*" + list.size() + "\r\n"));
+			for(Iterator<?> i = list.iterator(); i.hasNext();){
+				write(out, i.next());
+			}
+		}else{
+			throw new IOException("Can't write " + reply);
+		}
+	}
+
+	private static void writeStatus(OutputStream out, String status) throws IOException{
+		out.write(bytes("+" + status + "\r\n"));
+	}
+
+	//keys and fields are kept as ISO-8859-1 strings, which maps every byte to a char and back
+	private static String string(byte[] b){
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] bytes(String s){
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String sha1(String script){
+		try{
+			StringBuilder hex = new StringBuilder();
+			for(byte b : MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8))){
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of RedisCache: bytes as they are, and objects through the serializer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisCacheBenchmark {
+
+	@Param({"POOL", "MULTIPLEXED"})
+	public String backend;
+
+	@Param({"1024", "20480"})
+	public int size;
+
+	private Subjects.Cache cache;
+	private byte[] data;
+	private SampleCart cart;
+
+	@Setup
+	public void setUp(){
+		cache = Subjects.create(Subjects.Cache.class, backend);
+		data = new byte[size];
+		new Random(size).nextBytes(data);
+		//about 60 bytes per item when serialized
+		cart = new SampleCart("benchmark", size / 60);
+		cache.storeBytes("benchmark-bytes", data);
+		cache.storeObject("benchmark-object", cart);
+	}
+
+	@TearDown
+	public void tearDown(){
+		cache.destroy();
+	}
+
+	@Benchmark
+	public void storeBytes(){
+		cache.storeBytes("benchmark-bytes", data);
+	}
+
+	@Benchmark
+	public byte[] getBytes(){
+		return cache.getBytes("benchmark-bytes");
+	}
+
+	@Benchmark
+	public void storeObject(){
+		cache.storeObject("benchmark-object", cart);
+	}
+
+	@Benchmark
+	public Object getObject(){
+		return cache.getObject("benchmark-object");
+	}
+}
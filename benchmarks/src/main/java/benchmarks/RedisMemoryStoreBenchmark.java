@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RedisMemoryStore#storeData and #getData, with pages from 1 KB to 200 KB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisMemoryStoreBenchmark {
+
+	private static final String SESSION_ID = "benchmark";
+
+	@Param({"1024", "20480", "204800"})
+	public int size;
+
+	private Subjects.PageStore store;
+	private byte[] page;
+
+	@Setup
+	public void setUp(){
+		store = Subjects.create(Subjects.PageStore.class);
+		page = new byte[size];
+		new Random(size).nextBytes(page);
+		store.storeData(SESSION_ID, 1, page);
+	}
+
+	@TearDown
+	public void tearDown(){
+		store.destroy();
+	}
+
+	@Benchmark
+	public void storeData(){
+		store.storeData(SESSION_ID, 1, page);
+	}
+
+	@Benchmark
+	public byte[] getData(){
+		return store.getData(SESSION_ID, 1);
+	}
+}
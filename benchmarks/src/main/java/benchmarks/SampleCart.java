@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typical session attribute: a small object graph of strings, numbers and collections
+ */
+public class SampleCart implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String customer;
+	private final List<Item> items = new ArrayList<Item>();
+	private final Map<String, String> properties = new HashMap<String, String>();
+
+	public SampleCart(String customer, int items){
+		this.customer = customer;
+		for(int i = 0; i < items; i++){
+			this.items.add(new Item("SKU-" + i, "Item number " + i, new BigDecimal(i).movePointLeft(2), i % 5 + 1));
+			properties.put("property" + i, "value" + i);
+		}
+	}
+
+	public String getCustomer(){
+		return customer;
+	}
+
+	public List<Item> getItems(){
+		return items;
+	}
+
+	public Map<String, String> getProperties(){
+		return properties;
+	}
+
+	public static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String sku;
+		private final String description;
+		private final BigDecimal price;
+		private final int quantity;
+
+		public Item(String sku, String description, BigDecimal price, int quantity){
+			this.sku = sku;
+			this.description = description;
+			this.price = price;
+			this.quantity = quantity;
+		}
+
+		public String getSku(){
+			return sku;
+		}
+
+		public String getDescription(){
+			return description;
+		}
+
+		public BigDecimal getPrice(){
+			return price;
+		}
+
+		public int getQuantity(){
+			return quantity;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The stores live in the default package, which a class in a package can't refer to, and JMH
+ * benchmarks have to be in one. So each store is driven through one of these interfaces,
+ * implemented by a default package class that is loaded by name.
+ */
+public final class Subjects {
+
+	private Subjects(){
+	}
+
+	/**
+	 * A RedisCache connected to the embedded server
+	 */
+	public interface Cache {
+		void storeBytes(String key, byte[] data);
+		byte[] getBytes(String key);
+		void storeObject(String key, Serializable value);
+		Object getObject(String key);
+		void destroy();
+	}
+
+	/**
+	 * One of the IRedisSerializers
+	 */
+	public interface Serializer {
+		byte[] serialize(Object value) throws IOException;
+		Object deserialize(byte[] data) throws IOException, ClassNotFoundException;
+	}
+
+	/**
+	 * A RedisSessionStore with one bound Wicket session
+	 */
+	public interface SessionStore {
+		Serializable getAttribute(String name);
+		void setAttribute(String name, Serializable value);
+		/**
+		 * Flushes the session, after changing it so it has to be written
+		 */
+		void flushSession();
+		void destroy();
+	}
+
+	/**
+	 * A RedisMemoryStore
+	 */
+	public interface PageStore {
+		void storeData(String sessionId, int id, byte[] data);
+		byte[] getData(String sessionId, int id);
+		void destroy();
+	}
+
+	/**
+	 * A started CatalinaRedisSessionStore with one session
+	 */
+	public interface CatalinaStore {
+		/**
+		 * Changes one small attribute and saves the session
+		 */
+		void save() throws IOException;
+		/**
+		 * @return the id of the loaded session
+		 */
+		String load() throws IOException, ClassNotFoundException;
+		void destroy();
+	}
+
+	/**
+	 * Starts the embedded server if needed, and creates the subject
+	 * @param type one of the interfaces above
+	 * @param arguments passed to the subject's constructor, which takes as many strings
+	 */
+	public static <T> T create(Class<T> type, String... arguments){
+		try{
+			EmbeddedRedisServer.startShared();
+			Class<?> clazz = Class.forName("Benchmark" + type.getSimpleName());
+			Class<?>[] parameterTypes = new Class<?>[arguments.length];
+			Arrays.fill(parameterTypes, String.class);
+			Object subject = clazz.getConstructor(parameterTypes).newInstance((Object[]) arguments);
+			return type.cast(subject);
+		}catch(Exception e){
+			throw new IllegalStateException("Could not create the " + type.getSimpleName() + " subject", e);
+		}
+	}
+}